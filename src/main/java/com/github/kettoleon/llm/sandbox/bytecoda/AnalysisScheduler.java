@@ -0,0 +1,222 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaClass;
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaClassRepository;
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaMethod;
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaMethodRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * Runs the LLM analysis of pending methods and classes with a bounded number of in-flight model calls.
+ * Methods run in waves following the call graph, callees first, so their summaries can go into the callers' prompts.
+ * A class is analysed as soon as its own methods are done, and results are written back in batches.
+ */
+@Component
+@Slf4j
+public class AnalysisScheduler {
+
+    @FunctionalInterface
+    public interface MethodAnalyser {
+        String analyse(JavaMethod method, List<JavaMethod> classMethods, List<JavaMethod> callees);
+    }
+
+    private final JavaMethodRepository javaMethodRepository;
+    private final JavaClassRepository javaClassRepository;
+
+    private final int concurrency;
+    private final int batchSize;
+
+    private final ExecutorService llmExecutor;
+    private final Scheduler llmScheduler;
+
+    public AnalysisScheduler(Environment env, JavaMethodRepository javaMethodRepository, JavaClassRepository javaClassRepository) {
+        this.javaMethodRepository = javaMethodRepository;
+        this.javaClassRepository = javaClassRepository;
+        this.concurrency = env.getProperty("bytecoda.analysis.concurrency", Integer.class, 4);
+        this.batchSize = env.getProperty("bytecoda.analysis.batch-size", Integer.class, 50);
+        // Every model call blocks its thread, so the pool size is the in-flight limit against the model server.
+        this.llmExecutor = Executors.newFixedThreadPool(concurrency);
+        this.llmScheduler = Schedulers.fromExecutorService(llmExecutor, "bytecoda-analysis");
+        log.info("ByteCoda analysis running with {} concurrent model calls and batches of {}", concurrency, batchSize);
+    }
+
+    public void analyse(List<JavaClass> classes,
+                        Map<String, List<JavaMethod>> methodsByClassId,
+                        CallGraph callGraph,
+                        MethodAnalyser methodAnalyser,
+                        BiFunction<JavaClass, List<JavaMethod>, String> classAnalyser,
+                        Consumer<String> progress) {
+
+        Map<String, JavaClass> classesWithWork = new LinkedHashMap<>();
+        Map<String, AtomicInteger> pendingMethodsByClassId = new HashMap<>();
+        List<JavaMethod> pendingMethods = new ArrayList<>();
+        int pendingClasses = 0;
+        for (JavaClass jc : classes) {
+            List<JavaMethod> classPendingMethods = methodsByClassId.getOrDefault(jc.getId(), Collections.emptyList()).stream()
+                    .filter(jm -> jm.getFunctionality() == null)
+                    .toList();
+            if (!classPendingMethods.isEmpty() || jc.getFunctionality() == null) {
+                classesWithWork.put(jc.getId(), jc);
+                pendingMethodsByClassId.put(jc.getId(), new AtomicInteger(classPendingMethods.size()));
+                pendingMethods.addAll(classPendingMethods);
+                if (jc.getFunctionality() == null) {
+                    pendingClasses++;
+                }
+            }
+        }
+
+        List<List<JavaMethod>> waves = callGraph.waves(pendingMethods);
+
+        StageStats methodStage = new StageStats("methods", pendingMethods.size());
+        StageStats classStage = new StageStats("classes", pendingClasses);
+        BatchWriter<JavaMethod> methodWriter = new BatchWriter<>(batchSize, javaMethodRepository::saveAll);
+        BatchWriter<JavaClass> classWriter = new BatchWriter<>(batchSize, javaClassRepository::saveAll);
+
+        progress.accept("Analysing " + pendingMethods.size() + " methods in " + waves.size() + " call graph waves and " + pendingClasses + " classes with " + concurrency + " concurrent model calls...");
+
+        // Classes with no pending methods do not have to wait for any wave, they run alongside them and fill the model
+        // calls left idle while the last methods of a wave finish. The llm scheduler bounds both to concurrency calls
+        Flux<Void> classesOnly = Flux.fromIterable(classesWithWork.values())
+                .filter(jc -> pendingMethodsByClassId.get(jc.getId()).get() == 0)
+                .flatMap(jc -> analyseClass(jc, methodsByClassId.getOrDefault(jc.getId(), Collections.emptyList()), classAnalyser, classWriter, classStage, progress), concurrency);
+
+        AtomicInteger waveNumber = new AtomicInteger();
+        Flux<Void> methodWaves = Flux.fromIterable(waves)
+                .concatMap(wave -> {
+                    progress.accept("Analysing wave " + waveNumber.incrementAndGet() + "/" + waves.size() + " with " + wave.size() + " methods");
+                    return Flux.fromIterable(wave)
+                            .flatMap(jm -> {
+                                String classId = jm.getJavaClass().getId();
+                                List<JavaMethod> classMethods = methodsByClassId.getOrDefault(classId, Collections.emptyList());
+                                return analyseMethod(jm, classMethods, callGraph, methodAnalyser, methodWriter, methodStage, progress)
+                                        .then(Mono.defer(() -> pendingMethodsByClassId.get(classId).decrementAndGet() == 0
+                                                ? analyseClass(classesWithWork.get(classId), classMethods, classAnalyser, classWriter, classStage, progress)
+                                                : Mono.empty()));
+                            }, concurrency)
+                            .then();
+                });
+
+        try {
+            Flux.merge(methodWaves, classesOnly).blockLast();
+        } finally {
+            methodWriter.flush();
+            classWriter.flush();
+        }
+
+        progress.accept("Finished analysis. " + methodStage + ", " + classStage);
+    }
+
+    private Mono<Void> analyseMethod(JavaMethod jm,
+                                     List<JavaMethod> classMethods,
+                                     CallGraph callGraph,
+                                     MethodAnalyser methodAnalyser,
+                                     BatchWriter<JavaMethod> methodWriter,
+                                     StageStats methodStage,
+                                     Consumer<String> progress) {
+        return Mono.fromCallable(() -> {
+                    jm.setFunctionality(methodAnalyser.analyse(jm, classMethods, callGraph.getCallees(jm)));
+                    return jm;
+                }).subscribeOn(llmScheduler)
+                .doOnNext(m -> {
+                    methodWriter.add(m);
+                    progress.accept("Analyzed method " + methodStage.completed());
+                })
+                .then();
+    }
+
+    private Mono<Void> analyseClass(JavaClass jc,
+                                    List<JavaMethod> methods,
+                                    BiFunction<JavaClass, List<JavaMethod>, String> classAnalyser,
+                                    BatchWriter<JavaClass> classWriter,
+                                    StageStats classStage,
+                                    Consumer<String> progress) {
+        if (jc.getFunctionality() != null) {
+            return Mono.empty();
+        }
+        return Mono.fromCallable(() -> {
+                    jc.setFunctionality(classAnalyser.apply(jc, methods));
+                    return jc;
+                }).subscribeOn(llmScheduler)
+                .doOnNext(c -> {
+                    classWriter.add(c);
+                    progress.accept("Analyzed class " + classStage.completed());
+                })
+                .then();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        llmScheduler.dispose();
+        llmExecutor.shutdownNow();
+    }
+
+    /**
+     * Collects entities and persists them with a single saveAll once the batch is full.
+     */
+    private static class BatchWriter<T> {
+
+        private final int batchSize;
+        private final Consumer<List<T>> saveAll;
+        private final List<T> pending = new ArrayList<>();
+
+        BatchWriter(int batchSize, Consumer<List<T>> saveAll) {
+            this.batchSize = batchSize;
+            this.saveAll = saveAll;
+        }
+
+        synchronized void add(T entity) {
+            pending.add(entity);
+            if (pending.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        synchronized void flush() {
+            if (!pending.isEmpty()) {
+                saveAll.accept(new ArrayList<>(pending));
+                pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Throughput counter for one analysis stage, used to size the concurrency to the model server.
+     */
+    private static class StageStats {
+
+        private final String name;
+        private final int total;
+        private final AtomicInteger done = new AtomicInteger();
+        private final long start = System.nanoTime();
+
+        StageStats(String name, int total) {
+            this.name = name;
+            this.total = total;
+        }
+
+        String completed() {
+            done.incrementAndGet();
+            return toString();
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max((System.nanoTime() - start) / 1_000_000_000d, 0.001d);
+            return String.format("%s %d/%d (%.2f/s)", name, done.get(), total, done.get() / seconds);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaMethod;
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.MethodCallRepository.CallEdge;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+
+/**
+ * Calls between the methods of a project, resolved from the stored call edges.
+ * Callee references are matched exactly first, and by type, name and arity when the parameter types could not be
+ * resolved the same way on both sides. Calls to methods outside the project are dropped.
+ */
+public class CallGraph {
+
+    private final Map<String, List<JavaMethod>> calleesByCallerId = new HashMap<>();
+
+    public CallGraph(List<JavaMethod> methods, List<CallEdge> edges) {
+        Map<String, JavaMethod> byId = new HashMap<>();
+        Map<String, JavaMethod> byReference = new HashMap<>();
+        Map<String, List<JavaMethod>> byArity = new HashMap<>();
+        for (JavaMethod jm : methods) {
+            byId.put(jm.getId(), jm);
+            if (jm.getReference() != null) {
+                byReference.put(jm.getReference(), jm);
+                byArity.computeIfAbsent(arityKey(jm.getReference()), k -> new ArrayList<>()).add(jm);
+            }
+        }
+        for (CallEdge edge : edges) {
+            JavaMethod caller = byId.get(edge.getCallerId());
+            JavaMethod callee = byReference.get(edge.getCalleeReference());
+            if (callee == null) {
+                List<JavaMethod> candidates = byArity.getOrDefault(arityKey(edge.getCalleeReference()), Collections.emptyList());
+                callee = candidates.size() == 1 ? candidates.get(0) : null;
+            }
+            if (caller != null && callee != null && caller != callee) {
+                List<JavaMethod> callees = calleesByCallerId.computeIfAbsent(caller.getId(), k -> new ArrayList<>());
+                if (!callees.contains(callee)) {
+                    callees.add(callee);
+                }
+            }
+        }
+    }
+
+    public List<JavaMethod> getCallees(JavaMethod caller) {
+        return calleesByCallerId.getOrDefault(caller.getId(), Collections.emptyList());
+    }
+
+    /**
+     * Splits the given methods in waves, so that every method comes after the methods it calls among them.
+     * Methods in a cycle cannot be ordered, so when only cycles are left, the methods waiting on the fewest
+     * callees go first.
+     */
+    public List<List<JavaMethod>> waves(Collection<JavaMethod> methods) {
+        Map<String, JavaMethod> remaining = new LinkedHashMap<>();
+        methods.forEach(jm -> remaining.put(jm.getId(), jm));
+
+        Map<String, Set<String>> pendingCallees = new HashMap<>();
+        Map<String, List<String>> callers = new HashMap<>();
+        for (JavaMethod jm : remaining.values()) {
+            Set<String> callees = new HashSet<>();
+            for (JavaMethod callee : getCallees(jm)) {
+                if (remaining.containsKey(callee.getId())) {
+                    callees.add(callee.getId());
+                    callers.computeIfAbsent(callee.getId(), k -> new ArrayList<>()).add(jm.getId());
+                }
+            }
+            pendingCallees.put(jm.getId(), callees);
+        }
+
+        List<List<JavaMethod>> waves = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            int fewest = remaining.keySet().stream().mapToInt(id -> pendingCallees.get(id).size()).min().orElse(0);
+            List<JavaMethod> wave = remaining.values().stream()
+                    .filter(jm -> pendingCallees.get(jm.getId()).size() == fewest)
+                    .toList();
+            for (JavaMethod jm : wave) {
+                remaining.remove(jm.getId());
+                for (String caller : callers.getOrDefault(jm.getId(), Collections.emptyList())) {
+                    pendingCallees.get(caller).remove(jm.getId());
+                }
+            }
+            waves.add(wave);
+        }
+        return waves;
+    }
+
+    private static String arityKey(String reference) {
+        String parameters = StringUtils.substringBetween(reference, "(", ")");
+        int arity = StringUtils.isBlank(parameters) ? 0 : StringUtils.countMatches(parameters, ',') + 1;
+        return StringUtils.substringBefore(reference, "(") + "/" + arity;
+    }
+}
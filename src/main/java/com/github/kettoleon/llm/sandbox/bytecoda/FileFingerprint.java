@@ -0,0 +1,42 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaFile;
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaFileRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import static com.github.kettoleon.llm.sandbox.common.util.HashUtils.sha256Hex;
+
+/**
+ * Size, modification time and content hash of a source file. The content is only hashed when size or
+ * modification time differ from the previous fingerprint, which keeps unchanged files to a single stat call.
+ */
+public record FileFingerprint(Long size, Long lastModified, String contentHash) {
+
+    public static FileFingerprint of(JavaFile javaFile) {
+        return new FileFingerprint(javaFile.getFileSize(), javaFile.getLastModified(), javaFile.getContentHash());
+    }
+
+    public static FileFingerprint read(Path path, FileFingerprint previous) throws IOException {
+        long size = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        if (previous.contentHash() != null && Objects.equals(previous.size(), size) && Objects.equals(previous.lastModified(), lastModified)) {
+            return previous;
+        }
+        return new FileFingerprint(size, lastModified, sha256Hex(Files.readAllBytes(path)));
+    }
+
+    public void applyTo(JavaFile javaFile) {
+        javaFile.setFileSize(size);
+        javaFile.setLastModified(lastModified);
+        javaFile.setContentHash(contentHash);
+    }
+
+    public void saveTo(JavaFileRepository javaFileRepository, JavaFile javaFile) {
+        // An update query instead of save(), merging the detached file would also touch its classes collection
+        javaFileRepository.updateFingerprint(javaFile.getId(), size, lastModified, contentHash);
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * One run of the background indexer over a project, with its status and the latest progress lines.
+ */
+@Getter
+@Slf4j
+public class IndexJob {
+
+    private static final int MAX_LOG_LINES = 200;
+
+    public enum Status {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String projectId;
+    private final String projectName;
+    private final Path projectRoot;
+    private final ZonedDateTime created = ZonedDateTime.now();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile String stage = "Queued";
+    private volatile ZonedDateTime started;
+    private volatile ZonedDateTime finished;
+    private volatile String error;
+
+    private final Deque<String> logLines = new ArrayDeque<>();
+
+    // Files reported by the project watcher, null for a full walk of the project
+    private final Set<Path> touchedFiles;
+
+    public IndexJob(String projectId, String projectName, Path projectRoot, Collection<Path> touchedFiles) {
+        this.projectId = projectId;
+        this.projectName = projectName;
+        this.projectRoot = projectRoot;
+        this.touchedFiles = touchedFiles == null ? null : new LinkedHashSet<>(touchedFiles);
+    }
+
+    void addTouchedFiles(Collection<Path> paths) {
+        if (touchedFiles != null) {
+            touchedFiles.addAll(paths);
+        }
+    }
+
+    public boolean isFull() {
+        return touchedFiles == null;
+    }
+
+    void running() {
+        started = ZonedDateTime.now();
+        status = Status.RUNNING;
+    }
+
+    void stage(String stage) {
+        this.stage = stage;
+        log(stage);
+    }
+
+    void done() {
+        finished = ZonedDateTime.now();
+        stage = "Done";
+        status = Status.DONE;
+    }
+
+    void failed(Throwable t) {
+        finished = ZonedDateTime.now();
+        error = t.toString();
+        status = Status.FAILED;
+        log.error("Indexing job {} for project {} failed", id, projectId, t);
+    }
+
+    public void log(String msg, Object... args) {
+        String line = MessageFormatter.arrayFormat(msg, args).getMessage();
+        log.info("[{}] {}", projectId, line);
+        synchronized (logLines) {
+            logLines.addLast(line);
+            if (logLines.size() > MAX_LOG_LINES) {
+                logLines.removeFirst();
+            }
+        }
+    }
+
+    public List<String> getLogLines() {
+        synchronized (logLines) {
+            return new ArrayList<>(logLines);
+        }
+    }
+
+    public boolean isFinished() {
+        return status == Status.DONE || status == Status.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Job %s for project %s (%s): %s (%s), created %s, started %s, finished %s%s",
+                id, projectId, isFull() ? "full" : touchedFiles.size() + " touched files",
+                status, stage, created, started, finished, error == null ? "" : ", error: " + error);
+    }
+}
@@ -0,0 +1,622 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.*;
+import com.github.kettoleon.llm.sandbox.common.configuration.AiEnvironment;
+import com.github.kettoleon.llm.sandbox.common.prompt.PromptResponseCache;
+import com.github.kettoleon.llm.sandbox.common.prompt.PromptTemplate;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.declaration.CtAnnotation;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static org.apache.commons.lang3.StringUtils.substringAfterLast;
+
+/**
+ * Keeps the ByteCoda database and vector store of each project up to date in the background, one job at a time,
+ * so that queries only pay for retrieval and generation.
+ * There is no snapshot: while a job runs, queries read the rows it is rewriting, so the classes and methods of
+ * changed files can be missing their calls or functionality until they are analysed again. The vector store is only
+ * touched in the last stage of a job, adding new documents before removing stale ones, so a search finds either.
+ */
+@Service
+@Slf4j
+public class IndexingService {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private AiEnvironment aiEnvironment;
+
+    @Autowired
+    private JavaClassRepository javaClassRepository;
+
+    @Autowired
+    private JavaMethodRepository javaMethodRepository;
+
+    @Autowired
+    private JavaFileRepository javaFileRepository;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Autowired
+    private MethodCallRepository methodCallRepository;
+
+    @Autowired
+    private AnalysisScheduler analysisScheduler;
+
+    @Autowired
+    private VectorStoreSynchroniser vectorStoreSynchroniser;
+
+    @Autowired
+    private PromptResponseCache promptResponseCache;
+
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> new Thread(r, "bytecoda-indexer"));
+
+    private final Map<String, IndexJob> latestJobs = new ConcurrentHashMap<>();
+    private final Map<String, IndexJob> lastCompletedJobs = new ConcurrentHashMap<>();
+
+    /**
+     * Queues an indexing job for the project, unless the last index is younger than bytecoda.index.refresh-after, or a
+     * job is already queued or running.
+     */
+    public synchronized IndexJob requestIndexingIfStale(String projectId, String projectName, Path projectRoot) {
+        IndexJob latest = latestJobs.get(projectId);
+        if (latest != null && !latest.isFinished()) {
+            return latest;
+        }
+        Duration refreshAfter = environment.getProperty("bytecoda.index.refresh-after", Duration.class, Duration.ofMinutes(10));
+        boolean fresh = projectRepository.findById(projectId)
+                .map(Project::getLastIndexed)
+                .filter(lastIndexed -> lastIndexed.plus(refreshAfter).isAfter(ZonedDateTime.now()))
+                .isPresent();
+        return fresh ? latest : requestIndexing(projectId, projectName, projectRoot);
+    }
+
+    /**
+     * Queues an indexing job for the project, unless there is already one waiting to start.
+     */
+    public synchronized IndexJob requestIndexing(String projectId, String projectName, Path projectRoot) {
+        IndexJob latest = latestJobs.get(projectId);
+        if (latest != null && latest.getStatus() == IndexJob.Status.QUEUED && latest.isFull()) {
+            return latest;
+        }
+        return submit(new IndexJob(projectId, projectName, projectRoot, null));
+    }
+
+    /**
+     * Queues an indexing job that only looks at the given files, merging them into a queued job when possible.
+     */
+    public synchronized IndexJob requestFileIndexing(String projectId, String projectName, Path projectRoot, Set<Path> touchedFiles) {
+        IndexJob latest = latestJobs.get(projectId);
+        if (latest != null && latest.getStatus() == IndexJob.Status.QUEUED) {
+            latest.addTouchedFiles(touchedFiles);
+            return latest;
+        }
+        return submit(new IndexJob(projectId, projectName, projectRoot, touchedFiles));
+    }
+
+    private IndexJob submit(IndexJob job) {
+        latestJobs.put(job.getProjectId(), job);
+        indexer.submit(() -> run(job));
+        return job;
+    }
+
+    public Optional<IndexJob> getLatestJob(String projectId) {
+        return Optional.ofNullable(latestJobs.get(projectId));
+    }
+
+    public Optional<IndexJob> getLastCompletedJob(String projectId) {
+        return Optional.ofNullable(lastCompletedJobs.get(projectId));
+    }
+
+    /**
+     * Whether the project has a complete index to answer from, possibly built before the last restart.
+     */
+    public boolean hasCompletedIndex(String projectId) {
+        return lastCompletedJobs.containsKey(projectId) || projectRepository.findById(projectId).map(Project::getLastIndexed).isPresent();
+    }
+
+    public Collection<IndexJob> getLatestJobs() {
+        return latestJobs.values();
+    }
+
+    private void run(IndexJob job) {
+        synchronized (this) {
+            // Under the lock, so that no more touched files get merged into a job that already started
+            job.running();
+        }
+        Throwable failure = null;
+        try {
+            new Ingestion(job).run();
+            projectRepository.markIndexed(job.getProjectId(), ZonedDateTime.now());
+        } catch (Throwable t) {
+            failure = t;
+            throw t;
+        } finally {
+            // Also for errors, so that the job does not look like it is running forever
+            if (failure == null) {
+                job.done();
+                lastCompletedJobs.put(job.getProjectId(), job);
+            } else {
+                job.failed(failure);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        indexer.shutdownNow();
+    }
+
+    private class Ingestion {
+
+        private final IndexJob job;
+        private final PromptTemplate promptTemplateForAnalysis;
+
+        private Ingestion(IndexJob job) {
+            this.job = job;
+            this.promptTemplateForAnalysis = new PromptTemplate(aiEnvironment.getDefaultChatClientBuilder().build());
+            // Identical method bodies get identical prompts, across branches and projects
+            this.promptTemplateForAnalysis.setResponseCache(promptResponseCache, aiEnvironment.getDefaultOllamaChatModel().getDefaultOptions());
+        }
+
+        private void run() {
+            if (job.isFull()) {
+                job.stage("Ingesting project");
+                ingestProject(job.getProjectId(), job.getProjectName(), job.getProjectRoot());
+
+                job.stage("Synchronising vector store");
+                synchroniseVectorStore(job.getProjectId());
+            } else {
+                job.stage("Ingesting " + job.getTouchedFiles().size() + " touched files");
+                Set<String> affectedFileIds = ingestTouchedFiles(job.getProjectId(), job.getProjectName(), job.getProjectRoot(), job.getTouchedFiles());
+
+                job.stage("Synchronising vector store for " + affectedFileIds.size() + " files");
+                vectorStoreSynchroniser.synchroniseFiles(job.getProjectId(), affectedFileIds, this::logToOut);
+            }
+        }
+
+        private void synchroniseVectorStore(String projectId) {
+
+            logToOut("Synchronizing vector store...");
+
+            vectorStoreSynchroniser.synchronise(projectId, this::logToOut);
+
+            logToOut("Finished synchronizing vector store...");
+
+        }
+
+        private Set<String> ingestTouchedFiles(String projectId, String projectName, Path projectRoot, Set<Path> touchedFiles) {
+            Project project = retrieveOrCreateProject(projectId, projectName, projectRoot);
+
+            // Ids of every file whose documents may change, including removed ones so their documents get deleted
+            Set<String> affectedFileIds = new HashSet<>();
+            List<JavaFile> changedFiles = new ArrayList<>();
+            Map<String, JavaFile> knownFiles = javaFileRepository.findAllByProjectAndPathIn(project, touchedFiles.stream().map(Path::toString).toList()).stream()
+                    .collect(Collectors.toMap(JavaFile::getPath, jf -> jf));
+            try {
+                for (Path touched : touchedFiles) {
+                    JavaFile known = knownFiles.get(touched.toString());
+                    if (!Files.exists(touched)) {
+                        if (known != null) {
+                            affectedFileIds.add(known.getId());
+                            javaFileRepository.delete(known);
+                            logToOut("Removed java file from project {}: {}", project.getId(), known.getPath());
+                        }
+                        continue;
+                    }
+                    JavaFile jf = known != null ? known : addJavaFile(project, touched);
+                    if (hasContentChanged(jf, touched)) {
+                        changedFiles.add(jf);
+                        affectedFileIds.add(jf.getId());
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            parseChangedFiles(changedFiles);
+
+            job.stage("Analysing methods and classes");
+            analyseMissingMethodsAndClasses(project, javaClassRepository.findAllByFileIdIn(affectedFileIds));
+
+            return affectedFileIds;
+        }
+
+        private void ingestProject(String projectId, String projectName, Path projectRoot) {
+
+            logToOut("Ingesting project {} from {}", projectName, projectRoot.toAbsolutePath());
+
+            Project project = retrieveOrCreateProject(projectId, projectName, projectRoot);
+
+            try {
+                List<Path> javaFiles = Files.walk(projectRoot).filter(p -> p.getFileName().toString().endsWith(".java")).collect(Collectors.toList());
+
+                // Methods stored before call graphs existed have no reference, so their calls are unknown
+                boolean reparseAll = javaMethodRepository.existsByJavaClassFileProjectAndReferenceIsNull(project);
+                if (reparseAll) {
+                    logToOut("Some methods have no call graph information yet, re-parsing every file of the project");
+                }
+                checkForProjectChangesAndUpdateDatabase(project, javaFiles, reparseAll);
+
+//            printProjectStructure(project);
+
+                job.stage("Analysing methods and classes");
+                analyseMissingMethodsAndClasses(project, javaClassRepository.findAllByFileProject(project));
+
+
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+        }
+
+        private void printProjectStructure(Project project) {
+            logToOut("Project " + project.getId() + " structure: ");
+            Map<String, List<JavaClass>> classesByFileId = javaClassRepository.findAllByFileProject(project).stream()
+                    .collect(Collectors.groupingBy(jc -> jc.getFile().getId()));
+            Map<String, List<JavaMethod>> methodsByClassId = javaMethodRepository.findAllByJavaClassFileProject(project).stream()
+                    .collect(Collectors.groupingBy(jm -> jm.getJavaClass().getId()));
+            for (JavaFile file : javaFileRepository.findAllByProject(project)) {
+                logToOut("  - " + file.getPath());
+                for (JavaClass jc : classesByFileId.getOrDefault(file.getId(), Collections.emptyList())) {
+                    logToOut("    - " + jc.getQualifiedName());
+                    for (JavaMethod jm : methodsByClassId.getOrDefault(jc.getId(), Collections.emptyList())) {
+                        logToOut("      - " + jm.getSignature());
+                    }
+                }
+            }
+        }
+
+        private void analyseMissingMethodsAndClasses(Project project, List<JavaClass> classes) {
+            // All the project methods, so that callee summaries from other files are available to the prompts
+            List<JavaMethod> methods = javaMethodRepository.findAllByJavaClassFileProject(project);
+            Map<String, List<JavaMethod>> methodsByClassId = methods.stream()
+                    .collect(Collectors.groupingBy(jm -> jm.getJavaClass().getId()));
+            CallGraph callGraph = new CallGraph(methods, methodCallRepository.findAllEdgesByProject(project));
+            analysisScheduler.analyse(
+                    classes,
+                    methodsByClassId,
+                    callGraph,
+                    this::analyseMethod,
+                    this::analyseClass,
+                    this::logToOut
+            );
+        }
+
+        private void logToOut(String msg, Object... args) {
+            job.log(msg, args);
+        }
+
+        private String analyseClass(JavaClass jc, List<JavaMethod> classMethods) {
+            Optional<FunctionalityAnswer> answer = Optional.empty();
+            while (answer.isEmpty()) {
+                answer = promptTemplateForAnalysis.promptToBean(
+                        "You are a system that analyses java classes to explain their functionality. Keep answers/explanations concise/short to a single line of text.",
+                        buildUserPromptForClassAnalysis(jc, classMethods),
+                        FunctionalityAnswer.class,
+                        s -> lastResortAnswerParser(s)
+                );
+            }
+            return answer.get().functionality;
+        }
+
+        private String analyseMethod(JavaMethod jm, List<JavaMethod> classMethods, List<JavaMethod> callees) {
+            Optional<FunctionalityAnswer> answer = Optional.empty();
+            while (answer.isEmpty()) {
+                answer = promptTemplateForAnalysis.promptToBean(
+                        "You are a system that analyses java methods to explain their functionality. Keep answers/explanations concise/short to a single line of text.",
+                        buildUserPromptForMethodAnalysis(jm.getJavaClass().getQualifiedName(), classMethods, callees, jm),
+                        FunctionalityAnswer.class,
+                        s -> lastResortAnswerParser(s)
+                );
+            }
+            return answer.get().functionality;
+        }
+
+        private static FunctionalityAnswer lastResortAnswerParser(String s) {
+            if (s.contains("**Answer:**")) {
+                s = substringAfterLast(s, "**Answer:**");
+            }
+            s = s.trim();
+            if (s.split("\\r?\\n").length == 1) {
+                return new FunctionalityAnswer(s);
+            }
+            return null;
+        }
+
+        private void checkForProjectChangesAndUpdateDatabase(Project project, List<Path> javaFiles, boolean reparseAll) throws IOException {
+            parseChangedFiles(checkForFileChanges(project, javaFiles, reparseAll));
+        }
+
+        private void parseChangedFiles(List<JavaFile> changedFiles) {
+            logToOut("Parsing {} changed java files...", changedFiles.size());
+            ProjectModelBuilder modelBuilder = new ProjectModelBuilder(
+                    environment.getProperty("bytecoda.parse.shard-size", Integer.class, 500),
+                    environment.getProperty("bytecoda.parse.parallelism", Integer.class, Runtime.getRuntime().availableProcessors()),
+                    ProjectModelBuilder.findSourceRoots(job.getProjectRoot()));
+            modelBuilder.build(changedFiles, (jf, ctClasses) -> {
+                checkJavaFileChanges(jf, ctClasses);
+                // Only remember the fingerprint once the file made it into the database
+                FileFingerprint.of(jf).saveTo(javaFileRepository, jf);
+            });
+        }
+
+        private void checkJavaFileChanges(JavaFile jf, List<CtClass<?>> ctClasses) {
+
+            // Iterate over all java classes in the file
+            List<String> javaClasses = new ArrayList<>();
+            for (CtClass<?> ctClass : ctClasses) {
+                javaClasses.add(ctClass.getQualifiedName());
+            }
+
+            Map<String, JavaClass> knownClasses = new HashMap<>();
+            for (JavaClass jc : javaClassRepository.findAllByFile(jf)) {
+                if (!javaClasses.contains(jc.getQualifiedName())) {
+                    javaClassRepository.delete(jc);
+                    logToOut("Removed java class from database: {}", jc.getQualifiedName());
+                } else {
+                    knownClasses.put(jc.getQualifiedName(), jc);
+                }
+            }
+            boolean classesAdded = false;
+            for (String cjc : javaClasses) {
+                if (!knownClasses.containsKey(cjc)) {
+                    javaClassRepository.save(JavaClass.builder()
+                            .file(jf)
+                            .qualifiedName(cjc)
+                            .build());
+                    logToOut("Added java class to database: {}", cjc);
+                    classesAdded = true;
+                }
+            }
+            if (classesAdded) {
+                // Reloaded rather than reusing the saved instances, whose null method lists would orphan methods on merge
+                knownClasses = javaClassRepository.findAllByFile(jf).stream()
+                        .collect(Collectors.toMap(JavaClass::getQualifiedName, jc -> jc, (a, b) -> a));
+            }
+
+            Map<String, List<JavaMethod>> methodsByClassId = javaMethodRepository.findAllByJavaClassFileIdIn(List.of(jf.getId())).stream()
+                    .collect(Collectors.groupingBy(jm -> jm.getJavaClass().getId()));
+            for (CtClass<?> ctClass : ctClasses) {
+                JavaClass javaClass = knownClasses.get(ctClass.getQualifiedName());
+                checkForJavaClassChanges(javaClass, methodsByClassId.getOrDefault(javaClass.getId(), Collections.emptyList()), ctClass);
+            }
+
+        }
+
+        private void checkForJavaClassChanges(JavaClass javaClass, List<JavaMethod> knownMethods, CtClass<?> modelJavaClass) {
+            List<String> currentMethodSignatures = extractMethodSignatures(modelJavaClass);
+
+            Map<String, JavaMethod> knownSignatures = new HashMap<>();
+            for (JavaMethod jm : knownMethods) {
+                if (!currentMethodSignatures.contains(jm.getSignature())) {
+                    javaMethodRepository.delete(jm);
+                    logToOut("Removed java method from database: {}", jm.getSignature());
+                    javaClass.setFunctionality(null);
+                    javaClassRepository.save(javaClass);
+                } else {
+                    knownSignatures.putIfAbsent(jm.getSignature(), jm);
+                }
+            }
+            List<String> callerIds = new ArrayList<>();
+            List<MethodCall> calls = new ArrayList<>();
+            for (String signature : currentMethodSignatures) {
+                Optional<JavaMethod> jmo = Optional.ofNullable(knownSignatures.get(signature));
+                CtMethod<?> method = extractMethod(modelJavaClass, signature);
+                String reference = getMethodReference(method.getReference());
+                JavaMethod jm;
+                if (jmo.isEmpty()) {
+                    jm = javaMethodRepository.save(JavaMethod.builder()
+                            .javaClass(javaClass)
+                            .signature(signature)
+                            .code(method.toString())
+                            .reference(reference)
+                            .build());
+                    logToOut("Added java method to database: {}", signature);
+                    javaClass.setFunctionality(null);
+                    javaClassRepository.save(javaClass);
+                } else {
+                    String methodBody = method.toString();
+                    jm = jmo.get();
+                    if (!methodBody.equals(jm.getCode())) {
+                        jm.setCode(methodBody);
+                        jm.setFunctionality(null);
+                        jm.setReference(reference);
+                        javaMethodRepository.save(jm);
+                        logToOut("Noted java method changes to database: {}", signature);
+                        javaClass.setFunctionality(null);
+                        javaClassRepository.save(javaClass);
+                    } else if (!reference.equals(jm.getReference())) {
+                        jm.setReference(reference);
+                        javaMethodRepository.save(jm);
+                    }
+                }
+                callerIds.add(jm.getId());
+                for (String calleeReference : extractCalleeReferences(method)) {
+                    calls.add(MethodCall.builder().caller(jm).calleeReference(calleeReference).build());
+                }
+            }
+
+            // The calls of a parsed class are always replaced as a whole
+            if (!callerIds.isEmpty()) {
+                methodCallRepository.deleteAllByCallerIdIn(callerIds);
+            }
+            methodCallRepository.saveAll(calls);
+
+        }
+
+        private Set<String> extractCalleeReferences(CtMethod<?> method) {
+            Set<String> references = new LinkedHashSet<>();
+            for (CtInvocation<?> invocation : method.getElements(new TypeFilter<>(CtInvocation.class))) {
+                CtExecutableReference<?> executable = invocation.getExecutable();
+                if (executable != null && executable.getDeclaringType() != null) {
+                    references.add(getMethodReference(executable));
+                }
+            }
+            return references;
+        }
+
+        private String getMethodReference(CtExecutableReference<?> executable) {
+            String declaringType = executable.getDeclaringType() == null ? "?" : executable.getDeclaringType().getQualifiedName();
+            String parameters = executable.getParameters().stream()
+                    .map(p -> p == null ? "?" : p.getQualifiedName())
+                    .collect(Collectors.joining(","));
+            return declaringType + "#" + executable.getSimpleName() + "(" + parameters + ")";
+        }
+
+        private CtMethod<?> extractMethod(CtClass<?> modelJavaClass, String signature) {
+            for (CtMethod<?> method : modelJavaClass.getMethods()) {
+                if (signature.equals(getMethodSignature(method))) {
+                    return method;
+                }
+            }
+            throw new RuntimeException();
+        }
+
+        private List<String> extractMethodSignatures(CtClass<?> modelJavaClass) {
+            ArrayList<String> methodSignatures = new ArrayList<>();
+            for (CtMethod<?> method : modelJavaClass.getMethods()) {
+                methodSignatures.add(getMethodSignature(method));
+            }
+            return methodSignatures;
+        }
+
+        private List<JavaFile> checkForFileChanges(Project project, List<Path> javaFiles, boolean reparseAll) throws IOException {
+            Set<String> currentPaths = javaFiles.stream().map(Path::toString).collect(Collectors.toSet());
+            Map<String, JavaFile> knownFiles = new HashMap<>();
+            for (JavaFile jf : javaFileRepository.findAllByProject(project)) {
+                if (!currentPaths.contains(jf.getPath())) {
+                    javaFileRepository.delete(jf);
+                    logToOut("Removed java file from project {}: {}", project.getId(), jf.getPath());
+                } else {
+                    knownFiles.put(jf.getPath(), jf);
+                }
+            }
+
+            List<JavaFile> changedFiles = new ArrayList<>();
+            for (Path currentJavaFile : javaFiles) {
+                JavaFile jf = knownFiles.get(currentJavaFile.toString());
+                if (jf == null) {
+                    jf = addJavaFile(project, currentJavaFile);
+                }
+                if (hasContentChanged(jf, currentJavaFile) || reparseAll) {
+                    changedFiles.add(jf);
+                }
+            }
+            return changedFiles;
+        }
+
+        private JavaFile addJavaFile(Project project, Path javaFile) {
+            JavaFile jf = javaFileRepository.save(JavaFile.builder()
+                    .project(project)
+                    .path(javaFile.toString())
+                    .build());
+            logToOut("Added java file to project {}: {}", project.getId(), javaFile);
+            return jf;
+        }
+
+        private boolean hasContentChanged(JavaFile jf, Path javaFile) throws IOException {
+            FileFingerprint previous = FileFingerprint.of(jf);
+            FileFingerprint current = FileFingerprint.read(javaFile, previous);
+            if (current.equals(previous)) {
+                return false;
+            }
+            current.applyTo(jf);
+            if (Objects.equals(current.contentHash(), previous.contentHash())) {
+                // Touched but identical content, just remember the new size and modification time
+                current.saveTo(javaFileRepository, jf);
+                return false;
+            }
+            return true;
+        }
+
+        private Project retrieveOrCreateProject(String projectId, String projectName, Path projectRoot) {
+            Optional<Project> retrieved = projectRepository.findById(projectId);
+            if (retrieved.isEmpty()) {
+                Project prj = Project.builder()
+                        .id(projectId)
+                        .name(projectName)
+                        .path(projectRoot.toAbsolutePath().toString())
+                        .build();
+                prj = projectRepository.save(prj);
+                return prj;
+            }
+            return retrieved.get();
+        }
+
+        public record FunctionalityAnswer(String functionality) {
+        }
+
+        private String getMethodSignature(CtMethod<?> method) {
+            String methodId = removeAnnotations(method.toString(), method.getAnnotations());
+            methodId = StringUtils.substringBefore(methodId, "{").trim();
+            return methodId;
+        }
+
+        private String buildUserPromptForClassAnalysis(JavaClass javaClass, List<JavaMethod> classMethods) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("Class: " + javaClass.getQualifiedName() + "\n");
+            sb.append("Methods:\n");
+            for (JavaMethod cmethod : classMethods) {
+                sb.append("  - " + cmethod.getSignature() + ": " + cmethod.getFunctionality() + "\n");
+            }
+            sb.append("Please analyse the class with the provided description of its methods and very briefly explain its functionality.\n\n");
+
+            return sb.toString();
+        }
+
+        private String buildUserPromptForMethodAnalysis(String className, List<JavaMethod> classMethods, List<JavaMethod> callees, JavaMethod methodToAnalyse) {
+            StringBuffer sb = new StringBuffer();
+            sb.append("Class: " + className + "\n");
+            sb.append("Other methods:\n");
+            for (JavaMethod cmethod : classMethods) {
+                if (!cmethod.equals(methodToAnalyse)) {
+                    sb.append("  - " + cmethod.getSignature() + "\n");
+                }
+            }
+            List<JavaMethod> analysedCallees = callees.stream().filter(c -> c.getFunctionality() != null).toList();
+            if (!analysedCallees.isEmpty()) {
+                sb.append("Methods it calls:\n");
+                for (JavaMethod callee : analysedCallees) {
+                    sb.append("  - " + callee.getJavaClass().getQualifiedName() + ": " + callee.getSignature() + ": " + callee.getFunctionality() + "\n");
+                }
+            }
+            sb.append("Please analyse the following method of this class and very briefly explain its functionality:\n\n");
+
+            sb.append(methodToAnalyse.getCode());
+
+            return sb.toString();
+        }
+
+        private String removeAnnotations(String methodId, List<CtAnnotation<? extends Annotation>> annotations) {
+            for (CtAnnotation annotation : annotations) {
+                methodId = methodId.replace(annotation.toString(), "");
+            }
+            return methodId.trim();
+        }
+    }
+
+}
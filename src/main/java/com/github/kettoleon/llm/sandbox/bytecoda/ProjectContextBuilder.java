@@ -0,0 +1,71 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.*;
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Turns the documents found for a ByteCoda query into the context given to the model: the matched classes grouped by
+ * file, with their methods, and the code of the matched methods.
+ */
+@Component
+public class ProjectContextBuilder {
+
+    @Autowired
+    private JavaClassRepository javaClassRepository;
+
+    @Autowired
+    private JavaMethodRepository javaMethodRepository;
+
+    public String buildContext(List<Document> results, String projectId) {
+        Set<String> interestingJavaClasses = new HashSet<>();
+        Set<String> interestingJavaMethods = new HashSet<>();
+
+        for (Document d : results) {
+            interestingJavaClasses.add((String) d.getMetadata().get("classId"));
+            if (d.getMetadata().containsKey("methodId")) {
+                interestingJavaMethods.add((String) d.getMetadata().get("methodId"));
+            }
+        }
+
+        // Two queries regardless of the project size: the matched classes with their files, and all their methods
+        Map<JavaFile, List<JavaClass>> classesByFile = javaClassRepository.findAllByIdIn(interestingJavaClasses).stream()
+                .filter(jc -> jc.getFile().getProject().getId().equals(projectId))
+                .sorted(Comparator.comparing(JavaClass::getQualifiedName))
+                .collect(Collectors.groupingBy(JavaClass::getFile,
+                        () -> new TreeMap<>(Comparator.comparing(JavaFile::getPath)), Collectors.toList()));
+        Map<String, List<JavaMethod>> methodsByClassId = javaMethodRepository.findAllByJavaClassIdIn(interestingJavaClasses).stream()
+                .collect(Collectors.groupingBy(jm -> jm.getJavaClass().getId()));
+
+        StringBuffer sb = new StringBuffer();
+        sb.append("Here are details of the project files related to the user query:\n\n");
+        for (Map.Entry<JavaFile, List<JavaClass>> file : classesByFile.entrySet()) {
+            sb.append("File: " + file.getKey().getPath() + "\n");
+            for (JavaClass jc : file.getValue()) {
+                sb.append("  - Java Class: " + jc.getQualifiedName() + "\n");
+                if (jc.getFunctionality() != null) {
+                    // Null while the indexer re-analyses the class
+                    sb.append("    - " + jc.getFunctionality() + "\n");
+                }
+                sb.append("    - Class Methods:\n");
+                for (JavaMethod jm : methodsByClassId.getOrDefault(jc.getId(), Collections.emptyList())) {
+                    sb.append("      - Method: " + jm.getSignature() + "\n");
+                    if (jm.getFunctionality() != null) {
+                        sb.append("        - " + jm.getFunctionality() + "\n");
+                    }
+                    if (interestingJavaMethods.contains(jm.getId())) {
+                        sb.append("        - Method code:\n\n");
+                        sb.append("```java\n");
+                        sb.append(jm.getCode());
+                        sb.append("```\n\n");
+                    }
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
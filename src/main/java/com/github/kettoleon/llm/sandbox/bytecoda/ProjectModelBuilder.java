@@ -0,0 +1,119 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.JavaFile;
+import lombok.extern.slf4j.Slf4j;
+import spoon.Launcher;
+import spoon.reflect.CtModel;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Builds Spoon models for many files at once: files are split in shards, each shard is parsed in a single Spoon run,
+ * and shards run in parallel. Shards hold up to maxShardSize files, fewer when that is needed to give every worker
+ * one, so that a small change set is spread across cores too. The source roots of the project are on the classpath
+ * of every run, so types declared in files of other shards, or in files that did not change, still resolve.
+ * Each file gets handed its own classes, and the shard model is dropped before the worker takes the next shard,
+ * so memory is bounded by parallelism * maxShardSize files.
+ */
+@Slf4j
+public class ProjectModelBuilder {
+
+    private static final int SOURCE_ROOT_SEARCH_DEPTH = 8;
+
+    private final int maxShardSize;
+    private final int parallelism;
+    private final String[] sourceClasspath;
+
+    public ProjectModelBuilder(int maxShardSize, int parallelism, Collection<Path> sourceRoots) {
+        this.maxShardSize = Math.max(1, maxShardSize);
+        this.parallelism = Math.max(1, parallelism);
+        this.sourceClasspath = sourceRoots.stream().map(Path::toString).toArray(String[]::new);
+    }
+
+    /**
+     * @return the Maven/Gradle style source directories (src/x/java) under the project root, or the root itself
+     */
+    public static List<Path> findSourceRoots(Path projectRoot) {
+        try (Stream<Path> paths = Files.walk(projectRoot, SOURCE_ROOT_SEARCH_DEPTH)) {
+            List<Path> roots = paths
+                    .map(ProjectModelBuilder::normalise)
+                    .filter(p -> isSourceRoot(p) && Files.isDirectory(p))
+                    .toList();
+            return roots.isEmpty() ? List.of(normalise(projectRoot)) : roots;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isSourceRoot(Path path) {
+        Path src = path.getParent() == null ? null : path.getParent().getParent();
+        return src != null && src.getFileName() != null
+                && path.getFileName().toString().equals("java") && src.getFileName().toString().equals("src");
+    }
+
+    public void build(List<JavaFile> files, BiConsumer<JavaFile, List<CtClass<?>>> fileConsumer) {
+        int shardSize = Math.max(1, Math.min(maxShardSize, (files.size() + parallelism - 1) / parallelism));
+        List<List<JavaFile>> shards = IntStream.range(0, (files.size() + shardSize - 1) / shardSize)
+                .mapToObj(i -> files.subList(i * shardSize, Math.min(files.size(), (i + 1) * shardSize)))
+                .toList();
+
+        ForkJoinPool parsePool = new ForkJoinPool(parallelism);
+        try {
+            parsePool.submit(() -> shards.parallelStream().forEach(shard -> buildShard(shard, fileConsumer))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            parsePool.shutdown();
+        }
+    }
+
+    private void buildShard(List<JavaFile> shard, BiConsumer<JavaFile, List<CtClass<?>>> fileConsumer) {
+        Map<Path, List<CtClass<?>>> classesByFile = new HashMap<>();
+
+        Launcher launcher = new Launcher();
+        launcher.getEnvironment().setCommentEnabled(false);
+        // Only the project sources are known, dependencies get resolved as far as possible without them
+        launcher.getEnvironment().setNoClasspath(true);
+        launcher.getEnvironment().setSourceClasspath(sourceClasspath);
+        for (JavaFile jf : shard) {
+            classesByFile.put(normalise(Path.of(jf.getPath())), new ArrayList<>());
+            launcher.addInputResource(jf.getPath());
+        }
+        launcher.buildModel();
+        CtModel model = launcher.getModel();
+
+        for (CtElement ctElement : model.getElements(el -> el instanceof CtClass<?>)) {
+            SourcePosition position = ctElement.getPosition();
+            if (position.isValidPosition() && position.getFile() != null) {
+                List<CtClass<?>> fileClasses = classesByFile.get(normalise(position.getFile().toPath()));
+                if (fileClasses != null) {
+                    fileClasses.add((CtClass<?>) ctElement);
+                }
+            }
+        }
+        log.debug("Built model of {} files", shard.size());
+
+        for (JavaFile jf : shard) {
+            fileConsumer.accept(jf, classesByFile.get(normalise(Path.of(jf.getPath()))));
+        }
+    }
+
+    private static Path normalise(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
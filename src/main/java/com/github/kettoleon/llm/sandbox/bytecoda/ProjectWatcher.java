@@ -0,0 +1,212 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Optional watch mode for ByteCoda projects (bytecoda.watch.enabled). Java file changes under the project root
+ * are collected until the tree has been quiet for bytecoda.watch.debounce-ms, and then queued as a single
+ * indexing job for just the touched files. When the watch service overflows, a full indexing is queued instead.
+ */
+@Component
+@Slf4j
+public class ProjectWatcher {
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private IndexingService indexingService;
+
+    private final Map<String, Watch> watches = new ConcurrentHashMap<>();
+    private final Set<String> unwatchable = ConcurrentHashMap.newKeySet();
+
+    public boolean isEnabled() {
+        return environment.getProperty("bytecoda.watch.enabled", Boolean.class, false);
+    }
+
+    /**
+     * Starts watching the project if watch mode is enabled and it is not watched yet.
+     * A full indexing is queued when the watch starts, so changes made while nobody was watching are picked up.
+     *
+     * A project that cannot be watched (permissions, watch limits) is not tried again until restart.
+     *
+     * @return true if the project is being watched, so callers do not need to queue indexing themselves
+     */
+    public boolean watch(String projectId, String projectName, Path projectRoot) {
+        if (!isEnabled() || unwatchable.contains(projectId)) {
+            return false;
+        }
+        try {
+            watches.computeIfAbsent(projectId, id -> {
+                Watch watch = new Watch(projectId, projectName, projectRoot,
+                        environment.getProperty("bytecoda.watch.debounce-ms", Long.class, 1000L));
+                indexingService.requestIndexing(projectId, projectName, projectRoot);
+                return watch;
+            });
+            return true;
+        } catch (RuntimeException e) {
+            if (unwatchable.add(projectId)) {
+                log.warn("Unable to watch project {} at {}, its index is refreshed when stale instead", projectId, projectRoot, e);
+            }
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        watches.values().forEach(Watch::close);
+        watches.clear();
+    }
+
+    private class Watch implements Runnable {
+
+        private final String projectId;
+        private final String projectName;
+        private final Path projectRoot;
+        private final long debounceMs;
+
+        private final WatchService watchService;
+        private final Set<Path> registeredDirectories = new HashSet<>();
+        private final Thread thread;
+
+        private final Set<Path> touchedFiles = new LinkedHashSet<>();
+        private boolean overflow;
+
+        Watch(String projectId, String projectName, Path projectRoot, long debounceMs) {
+            this.projectId = projectId;
+            this.projectName = projectName;
+            this.projectRoot = projectRoot;
+            this.debounceMs = debounceMs;
+            try {
+                this.watchService = projectRoot.getFileSystem().newWatchService();
+            } catch (IOException e) {
+                throw new RuntimeException("Unable to watch project " + projectId + " at " + projectRoot, e);
+            }
+            try {
+                register(projectRoot);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly();
+                throw new RuntimeException("Unable to watch project " + projectId + " at " + projectRoot, e);
+            }
+            log.info("Watching {} directories of project {} for changes", registeredDirectories.size(), projectId);
+            this.thread = new Thread(this, "bytecoda-watch-" + projectId);
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    WatchKey key = hasPendingChanges() ? watchService.poll(debounceMs, TimeUnit.MILLISECONDS) : watchService.take();
+                    if (key == null) {
+                        // Quiet for a whole debounce period, hand the burst over to the indexer
+                        flush();
+                        continue;
+                    }
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        handle(directory, event);
+                    }
+                    if (!key.reset()) {
+                        registeredDirectories.remove(directory);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                log.debug("Stopped watching project {}", projectId);
+            }
+        }
+
+        private void handle(Path directory, WatchEvent<?> event) {
+            if (event.kind() == OVERFLOW) {
+                overflow = true;
+                return;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    // Files may have been created inside before the directory got registered
+                    touchedFiles.addAll(register(path));
+                } catch (IOException e) {
+                    log.warn("Unable to watch new directory {}, falling back to a full indexing", path, e);
+                    overflow = true;
+                }
+            } else if (event.kind() == ENTRY_DELETE && registeredDirectories.contains(path)) {
+                // A removed (or moved away) directory does not report the files it contained
+                overflow = true;
+            } else if (isJavaFile(path)) {
+                touchedFiles.add(path);
+            }
+        }
+
+        private boolean hasPendingChanges() {
+            return overflow || !touchedFiles.isEmpty();
+        }
+
+        private void flush() {
+            if (overflow) {
+                log.info("Too many changes on project {}, queueing a full indexing", projectId);
+                indexingService.requestIndexing(projectId, projectName, projectRoot);
+            } else {
+                log.info("Queueing indexing of {} touched files on project {}", touchedFiles.size(), projectId);
+                indexingService.requestFileIndexing(projectId, projectName, projectRoot, touchedFiles);
+            }
+            overflow = false;
+            touchedFiles.clear();
+        }
+
+        private List<Path> register(Path start) throws IOException {
+            List<Path> javaFiles = new ArrayList<>();
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (!dir.equals(projectRoot) && dir.getFileName().toString().startsWith(".")) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    registeredDirectories.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (isJavaFile(file)) {
+                        javaFiles.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return javaFiles;
+        }
+
+        private boolean isJavaFile(Path path) {
+            return path.getFileName().toString().endsWith(".java");
+        }
+
+        void close() {
+            thread.interrupt();
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Unable to close watch service of project {}", projectId, e);
+            }
+        }
+    }
+}
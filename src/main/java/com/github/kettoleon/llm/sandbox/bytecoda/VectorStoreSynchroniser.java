@@ -0,0 +1,132 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.*;
+import com.github.kettoleon.llm.sandbox.common.configuration.AiEnvironment;
+import com.github.kettoleon.llm.sandbox.common.vectorstore.EmbeddingBatcher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.vectorstore.VectorStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static com.github.kettoleon.llm.sandbox.common.util.HashUtils.sha256Hex;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Keeps the vector store documents of a project in line with the analysed methods and classes.
+ * Document ids are derived from the entity id and a hash of the embedded text, so only new or changed
+ * texts get embedded, and ids that are no longer expected are removed in a single delete.
+ */
+@Component
+@Slf4j
+public class VectorStoreSynchroniser {
+
+    private static final String EXISTING_IDS_QUERY = "SELECT id::text FROM public.vector_store WHERE metadata->>'projectId' = ?";
+    private static final String EXISTING_FILE_IDS_QUERY = "SELECT id::text FROM public.vector_store WHERE metadata->>'projectId' = :projectId AND metadata->>'fileId' IN (:fileIds)";
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private AiEnvironment aiEnvironment;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Autowired
+    private JavaClassRepository javaClassRepository;
+
+    @Autowired
+    private JavaMethodRepository javaMethodRepository;
+
+    public void synchronise(String projectId, Consumer<String> progress) {
+        Project project = projectRepository.findById(projectId).orElseThrow();
+
+        Map<String, Document> expected = expectedDocuments(projectId,
+                javaMethodRepository.findAllByJavaClassFileProject(project),
+                javaClassRepository.findAllByFileProject(project));
+
+        Set<String> existing = new HashSet<>(aiEnvironment.getDefaultVectorStoreJdbcTemplate().queryForList(EXISTING_IDS_QUERY, String.class, projectId));
+
+        apply(expected, existing, progress);
+    }
+
+    /**
+     * Same as {@link #synchronise(String, Consumer)}, but only for the documents of the given files.
+     * Files that no longer exist simply end up with all their documents removed.
+     */
+    public void synchroniseFiles(String projectId, Collection<String> fileIds, Consumer<String> progress) {
+        if (fileIds.isEmpty()) {
+            progress.accept("Vector store synchronised: no files affected");
+            return;
+        }
+
+        Map<String, Document> expected = expectedDocuments(projectId,
+                javaMethodRepository.findAllByJavaClassFileIdIn(fileIds),
+                javaClassRepository.findAllByFileIdIn(fileIds));
+
+        Set<String> existing = new HashSet<>(new NamedParameterJdbcTemplate(aiEnvironment.getDefaultVectorStoreJdbcTemplate())
+                .queryForList(EXISTING_FILE_IDS_QUERY, Map.of("projectId", projectId, "fileIds", fileIds), String.class));
+
+        apply(expected, existing, progress);
+    }
+
+    private Map<String, Document> expectedDocuments(String projectId, List<JavaMethod> methods, List<JavaClass> classes) {
+        Map<String, Document> expected = new LinkedHashMap<>();
+        for (JavaMethod jm : methods) {
+            JavaClass jc = jm.getJavaClass();
+            Map<String, Object> metadata = Map.of("projectId", projectId, "methodId", jm.getId(), "classId", jc.getId(), "fileId", jc.getFile().getId());
+            addDocument(expected, "method-code", jm.getId(), jm.getCode(), metadata);
+            addDocument(expected, "method-functionality", jm.getId(), jm.getFunctionality(), metadata);
+        }
+        for (JavaClass jc : classes) {
+            Map<String, Object> metadata = Map.of("projectId", projectId, "classId", jc.getId(), "fileId", jc.getFile().getId());
+            addDocument(expected, "class-functionality", jc.getId(), jc.getFunctionality(), metadata);
+        }
+        return expected;
+    }
+
+    private void apply(Map<String, Document> expected, Set<String> existing, Consumer<String> progress) {
+        VectorStore vectorStore = aiEnvironment.getDefaultVectorStore();
+
+        List<String> stale = existing.stream().filter(id -> !expected.containsKey(id)).toList();
+        List<Document> missing = expected.values().stream().filter(d -> !existing.contains(d.getId())).toList();
+
+        // Added before the stale ones are removed, so searches meanwhile find the old or the new documents, not neither
+        try (EmbeddingBatcher batcher = newEmbeddingBatcher(vectorStore)) {
+            batcher.addAll(missing);
+            batcher.flush();
+            progress.accept("Embedded " + batcher);
+        }
+        if (!stale.isEmpty()) {
+            vectorStore.delete(stale);
+        }
+
+        progress.accept(String.format("Vector store synchronised: %d documents, %d added, %d removed", expected.size(), missing.size(), stale.size()));
+    }
+
+    private EmbeddingBatcher newEmbeddingBatcher(VectorStore vectorStore) {
+        return new EmbeddingBatcher(vectorStore,
+                environment.getProperty("bytecoda.embedding.batch-size", Integer.class, 64),
+                environment.getProperty("bytecoda.embedding.batch-tokens", Integer.class, 6000));
+    }
+
+    private static void addDocument(Map<String, Document> documents, String kind, String entityId, String text, Map<String, Object> metadata) {
+        if (isBlank(text)) {
+            return;
+        }
+        String id = documentId(kind, entityId, text);
+        documents.put(id, new Document(id, text, new HashMap<>(metadata)));
+    }
+
+    static String documentId(String kind, String entityId, String text) {
+        String key = kind + ":" + entityId + ":" + sha256Hex(text);
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+}
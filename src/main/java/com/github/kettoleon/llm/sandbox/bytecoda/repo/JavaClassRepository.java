@@ -1,15 +1,28 @@
 package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 @Repository
 public interface JavaClassRepository extends JpaRepositoryImplementation<JavaClass, String> {
 
-    List<JavaClass> findAllByFile(JavaFile jf);
+    @Query("select jc from JavaClass jc join fetch jc.file f join fetch f.project where jc.file = :file")
+    List<JavaClass> findAllByFile(@Param("file") JavaFile jf);
 
     Optional<JavaClass> findByFileAndQualifiedName(JavaFile jf, String cjc);
+
+    @Query("select jc from JavaClass jc join fetch jc.file f join fetch f.project where f.project = :project")
+    List<JavaClass> findAllByFileProject(@Param("project") Project project);
+
+    @Query("select jc from JavaClass jc join fetch jc.file f join fetch f.project where f.id in :fileIds")
+    List<JavaClass> findAllByFileIdIn(@Param("fileIds") Collection<String> fileIds);
+
+    @Query("select jc from JavaClass jc join fetch jc.file f join fetch f.project where jc.id in :ids")
+    List<JavaClass> findAllByIdIn(@Param("ids") Collection<String> ids);
 }
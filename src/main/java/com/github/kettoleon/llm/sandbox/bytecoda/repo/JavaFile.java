@@ -23,6 +23,12 @@ public class JavaFile {
     @Column(columnDefinition = "LONGTEXT")
     private String path;
 
+    private Long fileSize;
+
+    private Long lastModified;
+
+    private String contentHash;
+
     @OneToMany(mappedBy = "file", fetch = FetchType.LAZY, orphanRemoval = true, cascade = {CascadeType.DETACH, CascadeType.REMOVE})
     private List<JavaClass> classes;
 
@@ -1,8 +1,13 @@
 package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -11,5 +16,14 @@ public interface JavaFileRepository extends JpaRepositoryImplementation<JavaFile
 
     Optional<JavaFile> findByProjectAndPath(Project project, String string);
 
-    List<JavaFile> findAllByProject(Project project);
+    @Query("select jf from JavaFile jf join fetch jf.project where jf.project = :project")
+    List<JavaFile> findAllByProject(@Param("project") Project project);
+
+    @Query("select jf from JavaFile jf join fetch jf.project where jf.project = :project and jf.path in :paths")
+    List<JavaFile> findAllByProjectAndPathIn(@Param("project") Project project, @Param("paths") Collection<String> paths);
+
+    @Transactional
+    @Modifying
+    @Query("update JavaFile jf set jf.fileSize = :fileSize, jf.lastModified = :lastModified, jf.contentHash = :contentHash where jf.id = :id")
+    void updateFingerprint(@Param("id") String id, @Param("fileSize") Long fileSize, @Param("lastModified") Long lastModified, @Param("contentHash") String contentHash);
 }
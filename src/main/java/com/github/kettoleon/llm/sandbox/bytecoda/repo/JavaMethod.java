@@ -3,6 +3,8 @@ package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 import jakarta.persistence.*;
 import lombok.*;
 
+import java.util.List;
+
 @Entity
 @Getter
 @Setter
@@ -27,4 +29,11 @@ public class JavaMethod {
     @Column(columnDefinition = "LONGTEXT")
     private String code;
 
+    // Declaring type, name and parameter types, as seen from invocations: com.example.Foo#bar(java.lang.String)
+    @Column(columnDefinition = "LONGTEXT")
+    private String reference;
+
+    @OneToMany(mappedBy = "caller", fetch = FetchType.LAZY, orphanRemoval = true, cascade = {CascadeType.DETACH, CascadeType.REMOVE})
+    private List<MethodCall> calls;
+
 }
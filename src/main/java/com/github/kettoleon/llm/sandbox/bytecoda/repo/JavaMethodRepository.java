@@ -1,6 +1,8 @@
 package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.Collection;
@@ -10,8 +12,20 @@ import java.util.Optional;
 @Repository
 public interface JavaMethodRepository extends JpaRepositoryImplementation<JavaMethod, String> {
 
-    List<JavaMethod> findAllByJavaClass(JavaClass javaClass);
+    @Query("select jm from JavaMethod jm join fetch jm.javaClass jc join fetch jc.file f join fetch f.project where jm.javaClass = :javaClass")
+    List<JavaMethod> findAllByJavaClass(@Param("javaClass") JavaClass javaClass);
 
     Optional<JavaMethod> findByJavaClassAndSignature(JavaClass javaClass, String signature);
 
+    @Query("select jm from JavaMethod jm join fetch jm.javaClass jc join fetch jc.file f join fetch f.project where f.project = :project")
+    List<JavaMethod> findAllByJavaClassFileProject(@Param("project") Project project);
+
+    @Query("select jm from JavaMethod jm join fetch jm.javaClass jc join fetch jc.file f join fetch f.project where f.id in :fileIds")
+    List<JavaMethod> findAllByJavaClassFileIdIn(@Param("fileIds") Collection<String> fileIds);
+
+    boolean existsByJavaClassFileProjectAndReferenceIsNull(Project project);
+
+    @Query("select jm from JavaMethod jm join fetch jm.javaClass jc join fetch jc.file f join fetch f.project where jc.id in :classIds")
+    List<JavaMethod> findAllByJavaClassIdIn(@Param("classIds") Collection<String> classIds);
+
 }
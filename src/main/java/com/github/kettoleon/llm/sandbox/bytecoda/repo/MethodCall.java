@@ -0,0 +1,25 @@
+package com.github.kettoleon.llm.sandbox.bytecoda.repo;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+@Entity
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+public class MethodCall {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    private String id;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    private JavaMethod caller;
+
+    // Reference of the invoked method, it may live in another file or outside the project
+    @Column(columnDefinition = "LONGTEXT")
+    private String calleeReference;
+
+}
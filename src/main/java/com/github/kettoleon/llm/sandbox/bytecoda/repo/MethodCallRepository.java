@@ -0,0 +1,29 @@
+package com.github.kettoleon.llm.sandbox.bytecoda.repo;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface MethodCallRepository extends JpaRepositoryImplementation<MethodCall, String> {
+
+    interface CallEdge {
+        String getCallerId();
+
+        String getCalleeReference();
+    }
+
+    @Query("select mc.caller.id as callerId, mc.calleeReference as calleeReference from MethodCall mc where mc.caller.javaClass.file.project = :project")
+    List<CallEdge> findAllEdgesByProject(@Param("project") Project project);
+
+    @Transactional
+    @Modifying
+    @Query("delete from MethodCall mc where mc.caller.id in :callerIds")
+    void deleteAllByCallerIdIn(@Param("callerIds") Collection<String> callerIds);
+}
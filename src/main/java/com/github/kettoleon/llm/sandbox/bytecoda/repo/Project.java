@@ -3,6 +3,7 @@ package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 import jakarta.persistence.*;
 import lombok.*;
 
+import java.time.ZonedDateTime;
 import java.util.List;
 
 @Entity
@@ -20,6 +21,8 @@ public class Project {
 
     private String path;
 
+    private ZonedDateTime lastIndexed;
+
     @OneToMany(mappedBy = "project", fetch = FetchType.LAZY, orphanRemoval = true, cascade = {CascadeType.DETACH, CascadeType.REMOVE})
     private List<JavaFile> javaFiles;
 
@@ -1,10 +1,20 @@
 package com.github.kettoleon.llm.sandbox.bytecoda.repo;
 
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.ZonedDateTime;
 
 @Repository
 public interface ProjectRepository extends JpaRepositoryImplementation<Project, String> {
 
+    @Transactional
+    @Modifying
+    @Query("update Project p set p.lastIndexed = :lastIndexed where p.id = :id")
+    void markIndexed(@Param("id") String id, @Param("lastIndexed") ZonedDateTime lastIndexed);
 
 }
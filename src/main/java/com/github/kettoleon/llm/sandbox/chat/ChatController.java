@@ -2,15 +2,22 @@ package com.github.kettoleon.llm.sandbox.chat;
 
 import com.github.kettoleon.llm.sandbox.chat.repo.Chat;
 import com.github.kettoleon.llm.sandbox.chat.repo.ChatRepository;
+import com.github.kettoleon.llm.sandbox.chat.repo.ChatRepository.ChatSummary;
+import com.github.kettoleon.llm.sandbox.chat.repo.RecentMessageCache;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Sort;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.ModelAndView;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -27,20 +34,65 @@ public class ChatController {
     @Autowired
     private ChatsWebSocketHandler chatsWebSocketHandler;
 
+    @Autowired
+    private ChatPurger chatPurger;
+
+    @Autowired
+    private RecentMessageCache recentMessageCache;
+
+    @Autowired
+    private Environment env;
+
     @GetMapping(path = "/chats")
     public ModelAndView getChats() {
         ModelAndView chats = page("chats/chats", "Chats", "MyChatGPT");
-        chats.addObject("chatGroups", makeChatGroups(chatRepository.findAll(Sort.by("created").descending())));
+        addChatPage(chats, chatRepository.findNewestSummaries(PageRequest.of(0, getSidebarPageSize() + 1)), null);
         return chats;
     }
 
     @GetMapping(path = "/chats/list")
     public ModelAndView getChatsList() {
         ModelAndView chats = new ModelAndView("chats/chat-list-show");
-        chats.addObject("chatGroups", makeChatGroups(chatRepository.findAll(Sort.by("created").descending())));
+        addChatPage(chats, chatRepository.findNewestSummaries(PageRequest.of(0, getSidebarPageSize() + 1)), null);
         return chats;
     }
 
+    @GetMapping(path = "/chats/list/more")
+    public ModelAndView getMoreChats(@RequestParam("beforeCreated") String beforeCreated,
+                                     @RequestParam("beforeId") String beforeId,
+                                     @RequestParam(name = "group", required = false) String group) {
+        ModelAndView chats = new ModelAndView("chats/chat-list-page");
+        ZonedDateTime created = ZonedDateTime.ofInstant(Instant.parse(beforeCreated), ZoneOffset.UTC);
+        addChatPage(chats, chatRepository.findSummariesBefore(created, beforeId, PageRequest.of(0, getSidebarPageSize() + 1)), group);
+        return chats;
+    }
+
+    private int getSidebarPageSize() {
+        return env.getProperty("chat.sidebar.page-size", Integer.class, 50);
+    }
+
+    /**
+     * @param summaries     a page of chats, newest first, with one more when there are older ones
+     * @param previousGroup the group the previous page ended with, its header is not repeated
+     */
+    private void addChatPage(ModelAndView view, List<ChatSummary> summaries, String previousGroup) {
+        int pageSize = getSidebarPageSize();
+        List<ChatSummary> page = summaries.subList(0, Math.min(pageSize, summaries.size()));
+        Map<String, List<ChatSummary>> groups = makeChatGroups(page);
+        view.addObject("chatGroups", groups);
+        view.addObject("previousGroup", previousGroup);
+        if (summaries.size() > pageSize) {
+            ChatSummary last = page.get(page.size() - 1);
+            String lastGroup = new ArrayList<>(groups.keySet()).get(groups.size() - 1);
+            view.addObject("moreUrl", UriComponentsBuilder.fromPath("/chats/list/more")
+                    .queryParam("beforeCreated", last.getCreated().toInstant().toString())
+                    .queryParam("beforeId", last.getId())
+                    .queryParam("group", lastGroup)
+                    .encode()
+                    .toUriString());
+        }
+    }
+
     @PutMapping(path = {"/api/v1/chats"})
     public ModelAndView openNewChat(HttpServletResponse response) {
         String chatId = UUID.randomUUID().toString();
@@ -65,6 +117,18 @@ public class ChatController {
         }
     }
 
+    @GetMapping(path = {"/api/v1/chats/{chatId}/history"}, produces = MediaType.TEXT_HTML_VALUE)
+    @ResponseBody
+    public String getOlderHistory(@PathVariable("chatId") String chatId, @RequestParam("before") String before) {
+        return chatsWebSocketHandler.renderOlderHistory(chatId, before);
+    }
+
+    @GetMapping(path = "/api/v1/chats/cache", produces = MediaType.TEXT_PLAIN_VALUE)
+    @ResponseBody
+    public String getCacheStats() {
+        return "Recent messages: " + recentMessageCache + "\n";
+    }
+
     @GetMapping(path = {"/api/v1/chats/{chatId}/edit"})
     public ModelAndView getChatEditHtml(@PathVariable("chatId") String chatId) {
         return new ModelAndView("chats/chat-list-title-edit").addObject("chat", chatRepository.findById(chatId).orElseThrow());
@@ -84,59 +148,42 @@ public class ChatController {
     @DeleteMapping(path = {"/api/v1/chats/{chatId}"})
     public ResponseEntity<?> deleteChat(@PathVariable("chatId") String chatId) {
 
-        chatRepository.deleteById(chatId);
-        chatsWebSocketHandler.remove(chatId);
+        chatPurger.delete(chatId);
 
         return ResponseEntity.ok().header("HX-Trigger", "chatsUpdated").build();
     }
 
-    private Map<String, List<Chat>> makeChatGroups(List<Chat> chats) {
-        List<Chat> today = new ArrayList<>();
-        List<Chat> yesterday = new ArrayList<>();
-        List<Chat> last7days = new ArrayList<>();
-        List<Chat> last30days = new ArrayList<>();
-        List<Chat> older = new ArrayList<>();
-        for (Chat chat : chats) {
-            if (chat.getCreated().isAfter(ZonedDateTime.now().truncatedTo(ChronoUnit.DAYS))) {
-                today.add(chat);
-            } else if (
-                    chat.getCreated().isBefore(ZonedDateTime.now().truncatedTo(ChronoUnit.DAYS)) &&
-                            chat.getCreated().isAfter(ZonedDateTime.now().minusDays(1).truncatedTo(ChronoUnit.DAYS))
-            ) {
-                yesterday.add(chat);
-            } else if (
-                    chat.getCreated().isBefore(ZonedDateTime.now().minusDays(1).truncatedTo(ChronoUnit.DAYS)) &&
-                            chat.getCreated().isAfter(ZonedDateTime.now().minusDays(7).truncatedTo(ChronoUnit.DAYS))
-            ) {
-                last7days.add(chat);
-            } else if (
-                    chat.getCreated().isBefore(ZonedDateTime.now().minusDays(7).truncatedTo(ChronoUnit.DAYS)) &&
-                            chat.getCreated().isAfter(ZonedDateTime.now().minusDays(30).truncatedTo(ChronoUnit.DAYS))
-            ) {
-                last30days.add(chat);
-            } else if (
-                    chat.getCreated().isBefore(ZonedDateTime.now().minusDays(30).truncatedTo(ChronoUnit.DAYS))) {
-                older.add(chat); //TODO classify older chats by month and year
-            }
-        }
+    @DeleteMapping(path = {"/api/v1/chats"})
+    public ResponseEntity<?> deleteChats(@RequestParam("ids") List<String> chatIds) {
 
-        Map<String, List<Chat>> groups = new LinkedHashMap<>();
-        if (!today.isEmpty()) {
-            groups.put("Today", today);
-        }
-        if (!yesterday.isEmpty()) {
-            groups.put("Yesterday", yesterday);
-        }
-        if (!last7days.isEmpty()) {
-            groups.put("Last 7 days", last7days);
-        }
-        if (!last30days.isEmpty()) {
-            groups.put("Last 30 days", last30days);
-        }
-        if (!older.isEmpty()) {
-            groups.put("Older", older);
-        }
+        chatPurger.deleteLater(chatIds);
 
+        return ResponseEntity.accepted().build();
+    }
+
+    private Map<String, List<ChatSummary>> makeChatGroups(List<ChatSummary> chats) {
+        // Boundaries computed once, chats come newest first so each group is filled in turn
+        ZonedDateTime today = ZonedDateTime.now().truncatedTo(ChronoUnit.DAYS);
+        ZonedDateTime yesterday = today.minusDays(1);
+        ZonedDateTime last7days = today.minusDays(7);
+        ZonedDateTime last30days = today.minusDays(30);
+
+        Map<String, List<ChatSummary>> groups = new LinkedHashMap<>();
+        for (ChatSummary chat : chats) {
+            String group;
+            if (!chat.getCreated().isBefore(today)) {
+                group = "Today";
+            } else if (!chat.getCreated().isBefore(yesterday)) {
+                group = "Yesterday";
+            } else if (!chat.getCreated().isBefore(last7days)) {
+                group = "Last 7 days";
+            } else if (!chat.getCreated().isBefore(last30days)) {
+                group = "Last 30 days";
+            } else {
+                group = "Older"; //TODO classify older chats by month and year
+            }
+            groups.computeIfAbsent(group, k -> new ArrayList<>()).add(chat);
+        }
         return groups;
 
     }
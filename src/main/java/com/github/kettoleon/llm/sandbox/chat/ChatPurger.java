@@ -0,0 +1,70 @@
+package com.github.kettoleon.llm.sandbox.chat;
+
+import com.github.kettoleon.llm.sandbox.chat.repo.ChatRepository;
+import com.github.kettoleon.llm.sandbox.chat.repo.DatabaseChatMemory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Deletes chats with bulk statements, messages first and then the chats, instead of having JPA load and remove
+ * every message. Viewers of a deleted chat are disconnected straight away, also when the rows go later.
+ */
+@Component
+@Slf4j
+public class ChatPurger {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private ChatRepository chatRepository;
+
+    @Autowired
+    private DatabaseChatMemory chatMemory;
+
+    @Autowired
+    private ChatsWebSocketHandler chatsWebSocketHandler;
+
+    private final ExecutorService purger = Executors.newSingleThreadExecutor(r -> new Thread(r, "chat-purger"));
+
+    public void delete(String chatId) {
+        chatsWebSocketHandler.remove(chatId);
+        purge(List.of(chatId));
+    }
+
+    /**
+     * Deletes the chats in the background, in batches, for when there are many of them.
+     */
+    public void deleteLater(Collection<String> chatIds) {
+        List<String> ids = new ArrayList<>(chatIds);
+        ids.forEach(chatsWebSocketHandler::remove);
+        purger.execute(() -> {
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<String> batch = ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE));
+                try {
+                    purge(batch);
+                } catch (RuntimeException e) {
+                    log.error("Could not delete chats {}", batch, e);
+                }
+            }
+            log.info("Deleted {} chats", ids.size());
+        });
+    }
+
+    private void purge(List<String> chatIds) {
+        // Under the memory flush lock, so no message of these chats gets saved between both deletes
+        chatMemory.clear(chatIds, () -> chatRepository.deleteAllByIdIn(chatIds));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        purger.shutdown();
+    }
+}
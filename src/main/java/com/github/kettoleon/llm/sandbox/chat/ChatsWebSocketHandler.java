@@ -1,11 +1,21 @@
 package com.github.kettoleon.llm.sandbox.chat;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.kettoleon.llm.sandbox.chat.repo.*;
 import com.github.kettoleon.llm.sandbox.common.configuration.AiEnvironment;
+import com.github.kettoleon.llm.sandbox.common.util.IdleEvictor;
 import com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils;
+import com.github.kettoleon.llm.sandbox.common.websocket.BroadcastBus;
+import com.github.kettoleon.llm.sandbox.common.websocket.FrameCoalescer;
+import com.github.kettoleon.llm.sandbox.common.websocket.FrameEmitter;
+import com.github.kettoleon.llm.sandbox.common.websocket.GenerationRegistry;
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundFrame;
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundSessions;
+import com.github.kettoleon.llm.sandbox.common.websocket.StreamingMessage;
 import io.netty.util.internal.StringUtil;
+import jakarta.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -16,25 +26,29 @@ import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.chat.model.Generation;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 import org.thymeleaf.context.Context;
 import org.thymeleaf.context.IContext;
 import org.thymeleaf.spring6.SpringTemplateEngine;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
 
 import java.io.IOException;
 import java.io.StringWriter;
 import java.text.Format;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
-import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtmlNullable;
-import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.springframework.ai.chat.client.advisor.AbstractChatMemoryAdvisor.DEFAULT_CHAT_MEMORY_RESPONSE_SIZE;
 
@@ -54,74 +68,166 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
     @Autowired
     private SpringTemplateEngine springTemplateEngine;
 
-    private Map<String, Chat> liveChats = new HashMap<>();
-    private Map<String, ChatClient> chatClients = new HashMap<>();
-    private Map<String, MessageChatMemoryAdvisor> memoryAdvisors = new HashMap<>();
-    private Map<String, ChatResponse> responses = new HashMap<>();
-    private final Map<String, List<WebSocketSession>> sessions = new ConcurrentHashMap<>();
+    @Autowired
+    private FrameEmitter frameEmitter;
+
+    @Autowired
+    private OutboundSessions outboundSessions;
+
+    @Autowired
+    private DatabaseChatMemory chatMemory;
+
+    @Autowired
+    private BroadcastBus broadcastBus;
+
+    @Autowired
+    private GenerationRegistry generations;
+
+    private final ConcurrentMap<String, LiveChat> liveChats = new ConcurrentHashMap<>();
+    private final int historyPageSize;
+    private final int maxReplayFrames;
+    private final Duration progressSnapshotInterval;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final IdleEvictor<String, LiveChat> liveChatEvictor;
+
+    public ChatsWebSocketHandler(Environment env) {
+        int maxResidentChats = env.getProperty("chat.live.max-resident", Integer.class, 1000);
+        Duration idleTimeout = env.getProperty("chat.live.idle-timeout", Duration.class, Duration.ofMinutes(30));
+        // A chat nobody is looking at and that is not generating is rebuilt on next use
+        this.liveChatEvictor = new IdleEvictor<>(liveChats, maxResidentChats, idleTimeout, LiveChat::getLastAccess,
+                LiveChat::isEvictable, lc -> log.debug("Dropped idle chat {}", lc.getChatId()));
+        this.historyPageSize = env.getProperty("chat.history.page-size", Integer.class, 50);
+        this.maxReplayFrames = env.getProperty("chat.stream.replay-frames", Integer.class, 256);
+        this.progressSnapshotInterval = env.getProperty("chat.stream.progress-snapshot-interval", Duration.class, Duration.ofSeconds(1));
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        broadcastBus.subscribe(new BroadcastBus.Subscriber() {
+            @Override
+            public int deliver(String chatId, OutboundFrame frame) {
+                return deliverFrame(chatId, frame);
+            }
+
+            @Override
+            public void control(String chatId, String control) {
+                handleControl(chatId, control);
+            }
+        });
+    }
 
     public ChatClient getChatClient(String chatId) {
-        if (!chatClients.containsKey(chatId)) {
-            chatClients.put(chatId, newChatClient(chatId));
-        }
-        return chatClients.get(chatId);
+        return getLiveChat(chatId).getChatClient();
+    }
+
+    private LiveChat getLiveChat(String chatId) {
+        // Touched inside compute, so a concurrent eviction of the same chat sees it as just used
+        LiveChat liveChat = liveChats.compute(chatId, (id, existing) -> {
+            LiveChat lc = existing == null ? newLiveChat(id) : existing;
+            lc.touch();
+            return lc;
+        });
+        liveChatEvictor.evictIfDue();
+        return liveChat;
     }
 
+    /**
+     * Stops the generations of the chat and disconnects its browsers, on every node.
+     */
     public void remove(String chatId) {
-        liveChats.remove(chatId);
-        chatClients.remove(chatId);
-        memoryAdvisors.remove(chatId);
-        responses.remove(chatId);
-        List<WebSocketSession> ss = sessions.get(chatId);
-        for (WebSocketSession s : ss) {
+        publishControl(chatId, new ChatControl(ChatControl.REMOVE, null));
+    }
+
+    private void removeLocally(String chatId) {
+        LiveChat liveChat = liveChats.remove(chatId);
+        generations.cancel(chatId);
+        if (liveChat == null) {
+            return;
+        }
+        for (WebSocketSession s : liveChat.getSessions()) {
+            outboundSessions.remove(s);
             try {
                 s.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
-        sessions.remove(chatId);
     }
 
-    private ChatClient newChatClient(String chatId) {
-        memoryAdvisors.put(chatId, new MessageChatMemoryAdvisor(new DatabaseChatMemory(chatRepository, messageRepository), chatId, DEFAULT_CHAT_MEMORY_RESPONSE_SIZE));
-        return aiEnvironment.getDefaultChatClientBuilder().build();
+    private LiveChat newLiveChat(String chatId) {
+        return new LiveChat(chatId,
+                aiEnvironment.getDefaultChatClientBuilder().build(),
+                new MessageChatMemoryAdvisor(chatMemory, chatId, DEFAULT_CHAT_MEMORY_RESPONSE_SIZE),
+                maxReplayFrames);
     }
 
     public void addChatMessage(Message msg) {
-        liveChats.put(msg.getChat().getId(), msg.getChat());
+        getLiveChat(msg.getChat().getId()).setChat(msg.getChat());
         broadcastRawMessage(msg.getChat().getId(), formatMessage(msg));
     }
 
 
     private String formatMessage(Message msg) {
+        return "<div id=\"messages\" hx-swap-oob=\"beforeend\">" + renderMessage(msg) + "</div>";
+    }
+
+    private String renderMessage(Message msg) {
         if (msg.getCreatedBy().equals("assistant")) {
-            return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div>" + handleThinking(msg) + "</div></div>";
+            return "<div>" + handleThinking(msg) + "</div>";
         } else if (msg.getCreatedBy().equals("user")) {
-            return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div class=\"d-flex justify-content-end\" style=\"margin: 1em;\"><div class=\"card bg-body-secondary mb-3\"><div class=\"card-body\" style=\"white-space: pre-wrap; word-break: break-word;\">" + msg.getText() + "</div></div></div></div>";
+            return "<div class=\"d-flex justify-content-end\" style=\"margin: 1em;\"><div class=\"card bg-body-secondary mb-3\"><div class=\"card-body\" style=\"white-space: pre-wrap; word-break: break-word;\">" + msg.getText() + "</div></div></div>";
         }
 
-        return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div><i>" + msg.getCreated().format(DateTimeFormatter.ofPattern("HH:mm:ss ")) + "</i> <b>" + msg.getCreatedBy() + "</b>: " + handleThinking(msg) + "</div></div>";
+        return "<div><i>" + msg.getCreated().format(DateTimeFormatter.ofPattern("HH:mm:ss ")) + "</i> <b>" + msg.getCreatedBy() + "</b>: " + handleThinking(msg) + "</div>";
     }
 
     public void addChatMessage(Chat chat, Flux<ChatResponse> response) {
-        liveChats.put(chat.getId(), chat);
+        LiveChat liveChat = getLiveChat(chat.getId());
+        liveChat.setChat(chat);
+        liveChat.getActiveGenerations().incrementAndGet();
         Message currentMessage = Message.builder()
                 .id(UUID.randomUUID().toString())
                 .createdBy("assistant")
                 .chat(chat)
                 .created(ZonedDateTime.now())
                 .build();
-        broadcastRawMessage(chat.getId(), formatNewAssistantMessage(currentMessage));
-        response.doFinally(s -> finishMessage(chat))
-                .subscribe(gp -> {
-                    responses.put(chat.getId(), gp);
+        String placeholder = formatNewAssistantMessage(currentMessage);
+        broadcastRawMessage(chat.getId(), placeholder);
+        publishProgress(chat.getId(), placeholder);
+        StreamingMessage streamingMessage = new StreamingMessage(currentMessage.getId());
+        Supplier<String> inProgress = () -> placeholder + streamingMessage.keyframe();
+        AtomicLong lastSnapshot = new AtomicLong(System.nanoTime());
+        // Rendered holding the live chat, so a replay reads the streaming message as of the last numbered frame
+        FrameCoalescer frames = frameEmitter.coalesce(streamingMessage::append, streamingMessage::keyframe,
+                streamingMessage::finalKeyframe, frame -> {
+                    int sent = broadcastFrame(chat.getId(), frame);
+                    if (broadcastBus.isShared() && System.nanoTime() - lastSnapshot.get() > progressSnapshotInterval.toNanos()) {
+                        lastSnapshot.set(System.nanoTime());
+                        publishProgress(chat.getId(), inProgress.get());
+                    }
+                    return sent;
+                }, liveChat);
+        liveChat.setInProgress(inProgress);
+        StringBuilder answer = new StringBuilder();
+        generations.subscribe(chat.getId(), response, gp -> {
+                    liveChat.setLastResponse(gp);
                     String text = Optional.ofNullable(gp.getResult())
                             .map(Generation::getOutput)
                             .map(AssistantMessage::getText).orElse("");
-                    currentMessage.setText(Optional.ofNullable(currentMessage.getText()).orElse("") + text);
-                    broadcastRawMessage(chat.getId(), formatInProgressMessage(currentMessage));
-
+                    answer.append(text);
+                    frames.add(text);
+
+                },
+                signal -> {
+                    frames.complete();
+                    liveChat.setInProgress(null);
+                    publishProgress(chat.getId(), null);
+                    liveChat.getActiveGenerations().decrementAndGet();
+                    if (signal == SignalType.CANCEL && isNotBlank(answer) && liveChats.get(chat.getId()) == liveChat) {
+                        // The memory advisor only stores complete answers, keep what was shown unless the chat is gone
+                        chatMemory.add(chat.getId(), List.of(new AssistantMessage(answer.toString())));
+                    }
+                    finishMessage(chat);
                 });
 
     }
@@ -146,28 +252,20 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
     }
 
-    private String formatInProgressMessage(Message gp) {
-        String text = gp.getText();
-        if (text.contains("<think>")) {
-            if (text.contains("</think>")) {
-                String answerPart = StringUtils.substringAfterLast(text, "</think>").trim();
-                return String.format("<span id=\"msg-answer-%s\">%s</span>", gp.getId(), markdownToHtml(answerPart));
-            } else {
-                String thinkPart = StringUtils.substringAfter(text, "<think>");
-                return String.format("<span id=\"msg-think-%s\">%s</span>", gp.getId(), markdownToHtml(thinkPart));
-            }
-        }
-        return String.format("<span id=\"msg-answer-%s\">%s</span>", gp.getId(), markdownToHtml(text));
-    }
-
     private String handleThinking(Message msg) {
 
         if (msg.getCreatedBy().equals("assistant")) {
 
+            Message.Rendering stale = msg.renderIfStale();
+            if (stale != null && msg.getId() != null) {
+                // Stored before this rendering version, from now on it is shown without rendering markdown
+                chatMemory.saveRendering(msg.getId(), stale);
+            }
+            Message.Rendering rendering = msg.getRendering();
             Context context = new Context();
             context.setVariable("id", msg.getId());
-            context.setVariable("thinking", markdownToHtmlNullable(getThinkingPart(msg.getText())));
-            context.setVariable("answer", markdownToHtmlNullable(getAnswerPart(msg.getText())));
+            context.setVariable("thinking", rendering.thinkingHtml());
+            context.setVariable("answer", rendering.answerHtml());
             StringWriter writer = new StringWriter();
             springTemplateEngine.process("chats/message", context, writer);
 
@@ -199,37 +297,6 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
         }
     }
 
-    private static String getAnswerPart(String text) {
-        if (text.contains("<think>")) {
-            String answerPart = null;
-            if (text.contains("</think>")) {
-                answerPart = StringUtils.substringAfterLast(text, "</think>").trim();
-            }
-            if(isBlank(answerPart)){
-                return null;
-            }
-            return answerPart;
-        }
-        if(isBlank(text)){
-            return null;
-        }
-        return text;
-    }
-
-    private static String getThinkingPart(String text) {
-        if (text.contains("<think>")) {
-            String thinkPart = StringUtils.substringAfter(text, "<think>");
-            if (text.contains("</think>")) {
-                thinkPart = StringUtils.substringBeforeLast(StringUtils.substringAfter(text, "<think>"), "</think>");
-            }
-            if(isBlank(thinkPart)){
-                return null;
-            }
-            return thinkPart;
-        }
-        return null;
-    }
-
 //    private String getResponse(String chatId) {
 //        return responses.get(chatId).getFullResponse();
 //    }
@@ -251,21 +318,73 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
 
     private void broadcastRawMessage(String chatId, String html) {
-        getOrCreateWebSockets(chatId).forEach(session -> sendRawMessage(session, html));
+        broadcastFrame(chatId, OutboundFrame.of(html));
+    }
+
+    private int broadcastFrame(String chatId, OutboundFrame frame) {
+        return broadcastBus.publish(chatId, frame);
     }
 
-    private List<WebSocketSession> getOrCreateWebSockets(String queryId) {
-        return sessions.computeIfAbsent(queryId, k -> new CopyOnWriteArrayList<>());
+    /**
+     * Lets the other nodes show the answer being generated here to browsers that connect to them mid-answer, see
+     * {@link LiveChat#setRemoteProgress}. Snapshots are published in order with the frames of the answer, a null
+     * snapshot once it is complete.
+     */
+    private void publishProgress(String chatId, String snapshot) {
+        if (broadcastBus.isShared()) {
+            publishControl(chatId, new ChatControl(ChatControl.PROGRESS, snapshot));
+        }
     }
 
-    private void sendRawMessage(WebSocketSession session, String progressHtml) {
+    private void publishControl(String chatId, ChatControl control) {
         try {
-            session.sendMessage(new TextMessage(progressHtml));
+            broadcastBus.publishControl(chatId, objectMapper.writeValueAsString(control));
         } catch (IOException e) {
-            log.warn("Error sending message to session: {}", session, e);
+            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Control messages of the chat, from this or another node.
+     */
+    private void handleControl(String chatId, String json) {
+        ChatControl control;
+        try {
+            control = objectMapper.readValue(json, ChatControl.class);
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable control message for chat {}: {}", chatId, json, e);
+            return;
+        }
+        if (ChatControl.STOP.equals(control.action())) {
+            generations.cancel(chatId);
+        } else if (ChatControl.REMOVE.equals(control.action())) {
+            removeLocally(chatId);
+        } else if (ChatControl.PROGRESS.equals(control.action())) {
+            // Kept even if nobody here looks at the chat yet, a browser may connect before the answer is complete
+            LiveChat liveChat = control.html() == null ? liveChats.get(chatId) : getLiveChat(chatId);
+            if (liveChat != null) {
+                liveChat.setRemoteProgress(control.html());
+            }
+        }
+    }
+
+    record ChatControl(String action, String html) {
+        static final String STOP = "stop";
+        static final String REMOVE = "remove";
+        static final String PROGRESS = "progress";
+    }
+
+    /**
+     * Frames of the chat, from this or another node, for the sessions connected here.
+     */
+    private int deliverFrame(String chatId, OutboundFrame frame) {
+        LiveChat liveChat = liveChats.get(chatId);
+        if (liveChat == null) {
+            return 0;
+        }
+        return liveChat.broadcast(frame, outboundSessions::send);
+    }
+
 //    private String buildProgressHtml(Message query, ChatResponse gp) {
 ////        if (gp.isError()) {
 ////            return String.format("<div id=\"qr-%s\" class=\"alert alert-danger d-flex align-items-center\" role=\"alert\"><i role=\"img\" class=\"bi bi-exclamation-circle-fill flex-shrink-0 me-2\"></i><div>%s</div></div>", query.getId(), gp.getErrorMessage());
@@ -289,22 +408,58 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        String chatId = getChatId(session);
-        getOrCreateWebSockets(chatId).add(session);
+        // Nothing is sent until the browser says what it has already seen, see resume
+        getLiveChat(getChatId(session));
+    }
 
-        sendChatHistoryIfNeeded(session, chatId);
+    private void resume(WebSocketSession session, String chatId, String lastEpoch, long lastSeq) {
+        LiveChat liveChat = getLiveChat(chatId);
+        liveChat.resume(session, lastEpoch, lastSeq, () -> renderHistoryReplay(chatId), outboundSessions::send);
     }
 
-    private void sendChatHistoryIfNeeded(WebSocketSession session, String chatId) {
-        //Get chat from repo or liveChats
-        //get previous messages
-        //group them by day, minutes?
-        //build and send the divs
-        //Store position of last message sent per session?
+    /**
+     * Replaces everything shown with the last page of the history.
+     */
+    private String renderHistoryReplay(String chatId) {
+        List<Message> messages = chatMemory.getMessages(chatId, historyPageSize + 1);
+        return "<div id=\"messages\" hx-swap-oob=\"innerHTML\">" + renderHistoryPage(chatId, messages) + "</div>";
+    }
 
-        List<Message> messages = messageRepository.findAllByChatOrderByCreated(chatRepository.findById(getChatId(session)).orElseThrow());
-        messages.stream().forEach(m -> sendRawMessage(session, formatMessage(m)));
+    /**
+     * @return the page of messages sent before the given one, preceded by the link to the page before it, if any
+     */
+    public String renderOlderHistory(String chatId, String beforeMessageId) {
+        List<Message> messages = new ArrayList<>(messageRepository.findAllByChatIdBefore(chatId, beforeMessageId, PageRequest.of(0, historyPageSize + 1)));
+        Collections.reverse(messages);
+        return renderHistoryPage(chatId, messages);
+    }
 
+    /**
+     * @param messages oldest first, one more than a page when there are older messages
+     */
+    private String renderHistoryPage(String chatId, List<Message> messages) {
+        StringBuilder html = new StringBuilder();
+        if (messages.size() > historyPageSize) {
+            messages = messages.subList(messages.size() - historyPageSize, messages.size());
+            Message oldest = messages.get(0);
+            if (oldest.getId() == null) {
+                // Still buffered, saving it gives it the id the next page is asked by
+                try {
+                    chatMemory.flush();
+                } catch (RuntimeException e) {
+                    log.warn("Could not save the messages of chat {} before paging its history", chatId, e);
+                }
+            }
+            if (oldest.getId() != null) {
+                html.append("<div hx-get=\"/api/v1/chats/").append(chatId).append("/history?before=").append(oldest.getId())
+                        .append("\" hx-trigger=\"intersect once\" hx-swap=\"outerHTML\"></div>");
+            } else {
+                // Not saved after all, the older messages show up on the next full replay instead
+                log.warn("No cursor for the older history of chat {}", chatId);
+            }
+        }
+        messages.forEach(m -> html.append(renderMessage(m)));
+        return html.toString();
     }
 
     private String getChatId(WebSocketSession session) {
@@ -313,10 +468,19 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
-        String text = new ObjectMapper().readTree(message.getPayload().toString()).get("message").asText();
-
-
+        JsonNode payload = new ObjectMapper().readTree(message.getPayload().toString());
         String chatId = getChatId(session);
+        if (payload.has("resume")) {
+            resume(session, chatId, payload.path("epoch").asText(), payload.get("resume").asLong(-1));
+            return;
+        }
+        if (payload.has("stop")) {
+            // The answer may be generated on another node
+            publishControl(chatId, new ChatControl(ChatControl.STOP, null));
+            return;
+        }
+        String text = payload.get("message").asText();
+
         log.info("Received message for chat {}: {}", chatId, text);
         if(isNotBlank(text)) {
             Chat chat = chatRepository.findById(chatId).orElseThrow();
@@ -330,7 +494,7 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
             addChatMessage(chat, getChatClient(chatId).
                     prompt()
-                    .advisors(memoryAdvisors.get(chatId))
+                    .advisors(getLiveChat(chatId).getMemoryAdvisor())
                     .user(text)
                     .stream().chatResponse());
         }
@@ -345,12 +509,29 @@ public class ChatsWebSocketHandler implements WebSocketHandler {
 
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
-        getOrCreateWebSockets(getChatId(session)).remove(session);
+        removeSession(session);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
-        getOrCreateWebSockets(getChatId(session)).remove(session);
+        removeSession(session);
+    }
+
+    private void removeSession(WebSocketSession session) {
+        String chatId = getChatId(session);
+        LiveChat liveChat = liveChats.get(chatId);
+        if (liveChat != null) {
+            liveChat.getSessions().remove(session);
+            liveChat.touch();
+            // With a shared bus the browsers of the chat may be on other nodes, so only an explicit stop cancels
+            if (liveChat.getSessions().isEmpty() && !broadcastBus.isShared()) {
+                generations.cancelIfAbandoned(chatId, () -> {
+                    LiveChat current = liveChats.get(chatId);
+                    return current == null || current.getSessions().isEmpty();
+                });
+            }
+        }
+        outboundSessions.remove(session);
     }
 
     @Override
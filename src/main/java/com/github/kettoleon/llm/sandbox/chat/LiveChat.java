@@ -0,0 +1,167 @@
+package com.github.kettoleon.llm.sandbox.chat;
+
+import com.github.kettoleon.llm.sandbox.chat.repo.Chat;
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundFrame;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.client.advisor.MessageChatMemoryAdvisor;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Everything {@link ChatsWebSocketHandler} keeps in memory for a chat while it is in use.
+ * Frames sent to the chat are numbered, and the last ones are kept, so that a reconnecting browser can get only
+ * what it missed. Each frame carries its number in a hidden #chat-seq element, together with an epoch that changes
+ * whenever the live chat is rebuilt and its numbering starts over.
+ * Numbering and replays hold the monitor of the live chat. A frame rendered from state that {@link #inProgress} also
+ * reads has to be rendered holding it too, so that a replay never shows that state ahead of its frame number.
+ */
+@Getter
+public class LiveChat {
+
+    private final String chatId;
+    private final ChatClient chatClient;
+    private final MessageChatMemoryAdvisor memoryAdvisor;
+    private final List<WebSocketSession> sessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger activeGenerations = new AtomicInteger();
+    private final String epoch = UUID.randomUUID().toString();
+    private final int maxReplayFrames;
+    @Getter(AccessLevel.NONE)
+    private final Deque<SequencedFrame> replayFrames = new ArrayDeque<>();
+    // Only changed while holding the lock, read without it when a keyframe is made
+    @Getter(AccessLevel.NONE)
+    private volatile long sequence;
+
+    @Setter
+    private volatile Chat chat;
+
+    @Setter
+    private volatile ChatResponse lastResponse;
+
+    /**
+     * Frames that recreate the answer being generated, if any, for browsers that need the whole chat again.
+     * Only called holding the monitor of the live chat.
+     */
+    @Setter
+    private volatile Supplier<String> inProgress;
+
+    // The answer being generated on another node, as of its last snapshot, and the last frame number it includes
+    @Getter(AccessLevel.NONE)
+    private String remoteProgress;
+    @Getter(AccessLevel.NONE)
+    private long remoteProgressSeq;
+
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    LiveChat(String chatId, ChatClient chatClient, MessageChatMemoryAdvisor memoryAdvisor, int maxReplayFrames) {
+        this.chatId = chatId;
+        this.chatClient = chatClient;
+        this.memoryAdvisor = memoryAdvisor;
+        this.maxReplayFrames = maxReplayFrames;
+    }
+
+    /**
+     * Numbers the frame, keeps it for replay and sends it to every session that is caught up.
+     *
+     * @return the number of sessions it was sent to
+     */
+    synchronized int broadcast(OutboundFrame frame, BiConsumer<WebSocketSession, OutboundFrame> send) {
+        long seq = ++sequence;
+        Supplier<String> keyframe = frame.keyframe() == null ? null : () -> frame.keyframe().get() + marker(sequence);
+        OutboundFrame sequenced = new OutboundFrame(frame.payload() + marker(seq), keyframe);
+        replayFrames.addLast(new SequencedFrame(seq, sequenced));
+        while (replayFrames.size() > maxReplayFrames) {
+            replayFrames.removeFirst();
+        }
+        sessions.forEach(session -> send.accept(session, sequenced));
+        return sessions.size();
+    }
+
+    /**
+     * Brings a session up to date and from then on sends it every frame. When the frames after lastSeq are still
+     * kept, only those are sent, otherwise the history, which has to replace everything shown, followed by the
+     * answer in progress.
+     */
+    void resume(WebSocketSession session, String lastEpoch, long lastSeq, Supplier<String> history,
+                BiConsumer<WebSocketSession, OutboundFrame> send) {
+        synchronized (this) {
+            boolean replayable = epoch.equals(lastEpoch) && lastSeq >= 0 && lastSeq <= sequence
+                    && (lastSeq == sequence || (!replayFrames.isEmpty() && replayFrames.getFirst().seq() <= lastSeq + 1));
+            if (replayable) {
+                replayFrames.stream()
+                        .filter(f -> f.seq() > lastSeq)
+                        .forEach(f -> send.accept(session, f.frame()));
+                addSession(session);
+                return;
+            }
+        }
+        // Read from the database without the lock, so that the frames of the chat do not wait for it
+        String replay = history.get();
+        synchronized (this) {
+            Supplier<String> progress = inProgress;
+            send.accept(session, OutboundFrame.of(replay + (progress == null ? remoteProgress() : progress.get()) + marker(sequence)));
+            addSession(session);
+        }
+    }
+
+    /**
+     * Keeps the snapshot of an answer being generated on another node, which arrives in order with its frames, so
+     * that browsers connected here can get it back. Null once the answer is complete.
+     */
+    synchronized void setRemoteProgress(String snapshot) {
+        remoteProgress = snapshot;
+        remoteProgressSeq = sequence;
+    }
+
+    /**
+     * The last snapshot followed by the frames received since, or the snapshot alone if some of them are no
+     * longer kept, the next snapshot or the final keyframe brings it up to date.
+     */
+    private String remoteProgress() {
+        if (remoteProgress == null) {
+            return "";
+        }
+        StringBuilder progress = new StringBuilder(remoteProgress);
+        if (!replayFrames.isEmpty() && replayFrames.getFirst().seq() <= remoteProgressSeq + 1) {
+            replayFrames.stream()
+                    .filter(f -> f.seq() > remoteProgressSeq)
+                    .forEach(f -> progress.append(f.frame().payload()));
+        }
+        return progress.toString();
+    }
+
+    private void addSession(WebSocketSession session) {
+        if (!sessions.contains(session)) {
+            sessions.add(session);
+        }
+    }
+
+    private String marker(long seq) {
+        return String.format("<span id=\"chat-seq\" hidden data-epoch=\"%s\" data-seq=\"%d\"></span>", epoch, seq);
+    }
+
+    void touch() {
+        lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * A chat nobody is looking at and that is not generating can be dropped, it will be rebuilt on next use.
+     */
+    boolean isEvictable() {
+        return sessions.isEmpty() && activeGenerations.get() == 0;
+    }
+
+    private record SequencedFrame(long seq, OutboundFrame frame) {
+    }
+}
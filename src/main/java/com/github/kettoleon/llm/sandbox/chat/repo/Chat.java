@@ -9,6 +9,7 @@ import java.time.ZonedDateTime;
 import java.util.List;
 
 @Entity
+@Table(indexes = @Index(columnList = "created, id"))
 @Getter
 @Setter
 @Builder
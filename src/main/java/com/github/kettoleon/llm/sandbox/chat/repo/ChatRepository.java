@@ -1,12 +1,41 @@
 package com.github.kettoleon.llm.sandbox.chat.repo;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.ZonedDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface ChatRepository extends JpaRepositoryImplementation<Chat, String> {
 
+    @Query("select c.id as id, c.title as title, c.created as created from Chat c order by c.created desc, c.id desc")
+    List<ChatSummary> findNewestSummaries(Pageable pageable);
+
+    @Query("select c.id as id, c.title as title, c.created as created from Chat c " +
+            "where c.created < :created or (c.created = :created and c.id < :id) order by c.created desc, c.id desc")
+    List<ChatSummary> findSummariesBefore(@Param("created") ZonedDateTime created, @Param("id") String id, Pageable pageable);
+
+    /**
+     * Deletes the chats without loading them, their messages have to be deleted first.
+     */
+    @Transactional
+    @Modifying
+    @Query("delete from Chat c where c.id in :ids")
+    int deleteAllByIdIn(@Param("ids") Collection<String> ids);
+
+    interface ChatSummary {
+        String getId();
+
+        String getTitle();
+
+        ZonedDateTime getCreated();
+    }
 
 }
@@ -1,45 +1,211 @@
 package com.github.kettoleon.llm.sandbox.chat.repo;
 
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.messages.Message;
 import org.springframework.ai.chat.messages.SystemMessage;
 import org.springframework.ai.chat.messages.UserMessage;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-@RequiredArgsConstructor
+/**
+ * Chat memory backed by the chat messages table. Added messages are written behind: they are buffered and saved
+ * in batches every chat.memory.flush-interval, or as soon as chat.memory.write-batch-size are pending, so the
+ * streaming path never waits on the database. Buffered messages are merged into {@link #get} until they are saved.
+ * Once chat.memory.max-pending messages are buffered, adding waits for a flush instead, so the buffer cannot grow
+ * without bound while the database is failing. Failed flushes are retried with a growing delay, and a batch that fails
+ * chat.memory.max-flush-attempts times in a row is saved message by message, dropping (and logging) the ones that
+ * still fail, so one bad message does not block the rest.
+ * Recent messages of active conversations are served from a {@link RecentMessageCache}.
+ */
+@Component
 @Slf4j
 public class DatabaseChatMemory implements ChatMemory {
 
+    private static final Duration MAX_RETRY_DELAY = Duration.ofMinutes(1);
+
     private final ChatRepository chatRepository;
 
     private final MessageRepository messageRepository;
 
+    private final RecentMessageCache recentMessages;
+
+    private final int batchSize;
+    private final int maxPending;
+    private final int maxFlushAttempts;
+    private final Duration flushInterval;
+    // Only changed holding the flush lock
+    private int failedFlushes;
+    private volatile long retryAt;
+    private final List<com.github.kettoleon.llm.sandbox.chat.repo.Message> pending = new ArrayList<>();
+    private final Map<com.github.kettoleon.llm.sandbox.chat.repo.Message, String> pendingConversations = new IdentityHashMap<>();
+    private final Object flushLock = new Object();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-memory-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public DatabaseChatMemory(Environment env, ChatRepository chatRepository, MessageRepository messageRepository,
+                              RecentMessageCache recentMessages) {
+        this.chatRepository = chatRepository;
+        this.messageRepository = messageRepository;
+        this.recentMessages = recentMessages;
+        this.batchSize = env.getProperty("chat.memory.write-batch-size", Integer.class, 50);
+        this.maxPending = env.getProperty("chat.memory.max-pending", Integer.class, 1000);
+        this.maxFlushAttempts = env.getProperty("chat.memory.max-flush-attempts", Integer.class, 5);
+        this.flushInterval = env.getProperty("chat.memory.flush-interval", Duration.class, Duration.ofMillis(200));
+        writer.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void add(String conversationId, List<Message> messages) {
-        Optional<Chat> chat = chatRepository.findById(conversationId);
-        if(chat.isPresent()) {
-            for (Message message : messages) {
-                messageRepository.save(com.github.kettoleon.llm.sandbox.chat.repo.Message.builder()
-                        .createdBy(getCreatedBy(message))
-                        .text(message.getText())
-                        .chat(chat.get())
-                        .created(ZonedDateTime.now())
-                        .build());
+        boolean full;
+        boolean overflowing;
+        List<com.github.kettoleon.llm.sandbox.chat.repo.Message> added = new ArrayList<>();
+        for (Message message : messages) {
+            com.github.kettoleon.llm.sandbox.chat.repo.Message repoMessage = com.github.kettoleon.llm.sandbox.chat.repo.Message.builder()
+                    .createdBy(getCreatedBy(message))
+                    .text(message.getText())
+                    .created(ZonedDateTime.now())
+                    .build();
+            if (!"user".equals(repoMessage.getCreatedBy())) {
+                // Rendered once, and before other threads can see the message, stored with it so it is not rendered again
+                repoMessage.render();
+            }
+            added.add(repoMessage);
+        }
+        synchronized (pending) {
+            for (com.github.kettoleon.llm.sandbox.chat.repo.Message repoMessage : added) {
+                pending.add(repoMessage);
+                pendingConversations.put(repoMessage, conversationId);
+            }
+            full = pending.size() >= batchSize;
+            overflowing = pending.size() >= maxPending;
+        }
+        added.forEach(m -> recentMessages.append(conversationId, m));
+        if (overflowing) {
+            // The writer is not keeping up, or the database is failing: the caller waits, and sees it fail
+            flush();
+        } else if (full) {
+            writer.execute(this::flushQuietly);
+        }
+    }
+
+    /**
+     * Saves every buffered message now, in one batch. Messages of conversations that no longer exist are dropped.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<com.github.kettoleon.llm.sandbox.chat.repo.Message> batch;
+            Map<com.github.kettoleon.llm.sandbox.chat.repo.Message, String> conversations;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pending);
+                conversations = new IdentityHashMap<>(pendingConversations);
+            }
+            Map<String, Chat> chats = chatRepository.findAllById(new HashSet<>(conversations.values())).stream()
+                    .collect(Collectors.toMap(Chat::getId, Function.identity()));
+            List<com.github.kettoleon.llm.sandbox.chat.repo.Message> toSave = new ArrayList<>();
+            for (com.github.kettoleon.llm.sandbox.chat.repo.Message message : batch) {
+                Chat chat = chats.get(conversations.get(message));
+                if (chat != null) {
+                    message.setChat(chat);
+                    toSave.add(message);
+                } else {
+                    log.warn("Dropped message for non-existing conversation {}: {}", conversations.get(message), message.getText());
+                    recentMessages.remove(conversations.get(message));
+                }
+            }
+            save(toSave);
+            synchronized (pending) {
+                // Only this method removes, and add only appends, so the batch is still the head of the buffer
+                pending.subList(0, batch.size()).clear();
+                batch.forEach(pendingConversations::remove);
+            }
+        }
+    }
+
+    private void save(List<com.github.kettoleon.llm.sandbox.chat.repo.Message> toSave) {
+        if (failedFlushes >= maxFlushAttempts) {
+            saveOneByOne(toSave);
+            failedFlushes = 0;
+            return;
+        }
+        try {
+            messageRepository.saveAll(toSave);
+            failedFlushes = 0;
+        } catch (RuntimeException e) {
+            failedFlushes++;
+            retryAt = System.currentTimeMillis() + Math.min(MAX_RETRY_DELAY.toMillis(), flushInterval.toMillis() << failedFlushes);
+            forgetIds(toSave);
+            throw e;
+        }
+    }
+
+    private void saveOneByOne(List<com.github.kettoleon.llm.sandbox.chat.repo.Message> toSave) {
+        for (com.github.kettoleon.llm.sandbox.chat.repo.Message message : toSave) {
+            try {
+                messageRepository.save(message);
+            } catch (RuntimeException e) {
+                log.error("Dropped chat message of {} after {} failed attempts: {}",
+                        message.getChat().getId(), maxFlushAttempts, message.getText(), e);
+                forgetIds(List.of(message));
+            }
+        }
+    }
+
+    /**
+     * A rolled back insert leaves the generated id behind, which would make the retry a merge of a row that is not there.
+     */
+    private static void forgetIds(List<com.github.kettoleon.llm.sandbox.chat.repo.Message> messages) {
+        messages.forEach(m -> m.setId(null));
+    }
+
+    /**
+     * Stores, in the background, a rendering made when showing a message saved before the current rendering version.
+     */
+    public void saveRendering(String messageId, com.github.kettoleon.llm.sandbox.chat.repo.Message.Rendering rendering) {
+        writer.execute(() -> {
+            try {
+                messageRepository.updateRendering(messageId, rendering.thinkingHtml(), rendering.answerHtml(),
+                        com.github.kettoleon.llm.sandbox.chat.repo.Message.RENDER_VERSION);
+            } catch (RuntimeException e) {
+                log.warn("Could not store the rendering of message {}, it will be rendered again", messageId, e);
             }
-        }else{
-            log.warn("Tried to add {} messages to non-existing conversation {}: {}", messages.size(), conversationId, messages.get(0).toString());
+        });
+    }
+
+    private void flushQuietly() {
+        if (System.currentTimeMillis() < retryAt) {
+            return;
+        }
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Could not save chat messages, will retry", e);
         }
+    }
 
+    @PreDestroy
+    public void shutdown() {
+        writer.shutdown();
+        retryAt = 0;
+        flushQuietly();
     }
 
     private String getCreatedBy(Message message) {
@@ -55,12 +221,34 @@ public class DatabaseChatMemory implements ChatMemory {
 
     @Override
     public List<Message> get(String conversationId, int lastN) {
-        Optional<Chat> chat = chatRepository.findById(conversationId);
-        if (chat.isPresent()) {
-            return mapMessages(messageRepository.findAllByChatOrderByCreated(chat.get()));
+        return mapMessages(getMessages(conversationId, lastN));
+    }
+
+    /**
+     * @return the last lastN messages of the conversation, oldest first, including those not saved yet
+     */
+    public List<com.github.kettoleon.llm.sandbox.chat.repo.Message> getMessages(String conversationId, int lastN) {
+        if (lastN <= 0) {
+            return Collections.emptyList();
         }
-        log.warn("Could not find conversation {} in the database", conversationId);
-        return Collections.emptyList();
+        return recentMessages.get(conversationId, lastN, n -> loadMessages(conversationId, n));
+    }
+
+    private List<com.github.kettoleon.llm.sandbox.chat.repo.Message> loadMessages(String conversationId, int lastN) {
+        // Buffer first: a message flushed in between is then in the window rather than in neither
+        List<com.github.kettoleon.llm.sandbox.chat.repo.Message> buffered = getPending(conversationId);
+        // Newest first so the limit keeps the last ones, then back to chronological order for the prompt
+        List<com.github.kettoleon.llm.sandbox.chat.repo.Message> window = new ArrayList<>(
+                messageRepository.findAllByChatIdOrderByCreatedDescIdDesc(conversationId, PageRequest.of(0, lastN)));
+        if (window.isEmpty() && buffered.isEmpty() && !chatRepository.existsById(conversationId)) {
+            log.warn("Could not find conversation {} in the database", conversationId);
+            return Collections.emptyList();
+        }
+        Collections.reverse(window);
+        // A message being flushed right now may already be in the window, it has got its id by then
+        Set<String> saved = window.stream().map(com.github.kettoleon.llm.sandbox.chat.repo.Message::getId).collect(Collectors.toSet());
+        buffered.stream().filter(m -> m.getId() == null || !saved.contains(m.getId())).forEach(window::add);
+        return new ArrayList<>(window.subList(Math.max(0, window.size() - lastN), window.size()));
     }
 
     private List<Message> mapMessages(List<com.github.kettoleon.llm.sandbox.chat.repo.Message> repoMessages) {
@@ -78,8 +266,39 @@ public class DatabaseChatMemory implements ChatMemory {
         throw new RuntimeException("Unknown message source: " + repoMessage.getCreatedBy());
     }
 
+    private List<com.github.kettoleon.llm.sandbox.chat.repo.Message> getPending(String conversationId) {
+        synchronized (pending) {
+            return pending.stream().filter(m -> conversationId.equals(pendingConversations.get(m))).toList();
+        }
+    }
+
     @Override
     public void clear(String conversationId) {
-        log.info("Ignored call to clear conversation");
+        clear(List.of(conversationId));
+    }
+
+    /**
+     * Deletes every message of the conversations with a single statement, including those still buffered.
+     */
+    public void clear(Collection<String> conversationIds) {
+        clear(conversationIds, () -> {
+        });
+    }
+
+    /**
+     * Same as {@link #clear(Collection)}, then runs andThen, e.g. to delete the conversations themselves, without a
+     * flush in between: messages added meanwhile are either deleted here or dropped because their conversation is gone.
+     */
+    public void clear(Collection<String> conversationIds, Runnable andThen) {
+        synchronized (flushLock) {
+            // No flush in progress, so the buffer can lose entries other than its head
+            synchronized (pending) {
+                pending.removeIf(m -> conversationIds.contains(pendingConversations.get(m)));
+                pendingConversations.values().removeIf(conversationIds::contains);
+            }
+            conversationIds.forEach(recentMessages::remove);
+            messageRepository.deleteAllByChatIdIn(conversationIds);
+            andThen.run();
+        }
     }
 }
@@ -1,13 +1,16 @@
 package com.github.kettoleon.llm.sandbox.chat.repo;
 
+import com.github.kettoleon.llm.sandbox.common.util.ThinkTagSplitter;
 import jakarta.persistence.*;
 import lombok.*;
 
 import java.time.ZonedDateTime;
 
 import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
+import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtmlNullable;
 
 @Entity
+@Table(indexes = @Index(columnList = "chat_id, created, id"))
 @Getter
 @Setter
 @Builder
@@ -15,6 +18,11 @@ import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdow
 @NoArgsConstructor
 public class Message {
 
+    /**
+     * Bump when the markdown or think tag handling changes, so that stored renderings are made again.
+     */
+    public static final int RENDER_VERSION = 1;
+
     @Id
     @GeneratedValue(strategy = GenerationType.UUID)
     private String id;
@@ -33,4 +41,67 @@ public class Message {
 
     private String createdBy;
 
+    @Column(columnDefinition = "LONGTEXT")
+    private String thinkingHtml;
+
+    @Column(columnDefinition = "LONGTEXT")
+    private String answerHtml;
+
+    private Integer renderVersion;
+
+    /**
+     * Renders the thinking and answer parts of the text, once, so that showing the message again does not need to.
+     */
+    public void render() {
+        Rendering rendering = renderText();
+        thinkingHtml = rendering.thinkingHtml();
+        answerHtml = rendering.answerHtml();
+        renderVersion = RENDER_VERSION;
+    }
+
+    /**
+     * Made for a message stored before the current rendering version. Messages are shared between threads by the chat
+     * memory, so it is kept in one volatile field rather than in the three stored ones.
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private volatile Rendering staleRendering;
+
+    /**
+     * Renders, once, a message stored before the current rendering version, keeping the rendering in memory with it.
+     *
+     * @return the new rendering, for the caller to store, or null if the message already has one
+     */
+    public synchronized Rendering renderIfStale() {
+        if (isRendered() || staleRendering != null) {
+            return null;
+        }
+        staleRendering = renderText();
+        return staleRendering;
+    }
+
+    /**
+     * @return the rendering of the current version, made now if there is none yet. The message is left as is.
+     */
+    public Rendering getRendering() {
+        Rendering rendering = staleRendering;
+        if (rendering != null) {
+            return rendering;
+        }
+        return isRendered() ? new Rendering(thinkingHtml, answerHtml) : renderText();
+    }
+
+    private Rendering renderText() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split(text == null ? "" : text);
+        return new Rendering(markdownToHtmlNullable(parts.getThinkingPart()), markdownToHtmlNullable(parts.getAnswerPart()));
+    }
+
+    public boolean isRendered() {
+        return renderVersion != null && renderVersion == RENDER_VERSION;
+    }
+
+    public record Rendering(String thinkingHtml, String answerHtml) {
+    }
+
 }
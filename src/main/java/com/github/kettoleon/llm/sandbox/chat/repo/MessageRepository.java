@@ -1,12 +1,38 @@
 package com.github.kettoleon.llm.sandbox.chat.repo;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
 public interface MessageRepository extends JpaRepositoryImplementation<Message, String> {
 
     List<Message> findAllByChatOrderByCreated(Chat chat);
+
+    List<Message> findAllByChatIdOrderByCreatedDescIdDesc(String chatId, Pageable pageable);
+
+    /**
+     * Keyset on (created, id), in the same order as {@link #findAllByChatIdOrderByCreatedDescIdDesc}, so messages
+     * created in the same instant as the cursor are not skipped.
+     */
+    @Query("select m from Message m, Message b where b.id = :beforeId and m.chat.id = :chatId " +
+            "and (m.created < b.created or (m.created = b.created and m.id < b.id)) order by m.created desc, m.id desc")
+    List<Message> findAllByChatIdBefore(@Param("chatId") String chatId, @Param("beforeId") String beforeId, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("delete from Message m where m.chat.id in :chatIds")
+    int deleteAllByChatIdIn(@Param("chatIds") Collection<String> chatIds);
+
+    @Transactional
+    @Modifying
+    @Query("update Message m set m.thinkingHtml = :thinkingHtml, m.answerHtml = :answerHtml, m.renderVersion = :renderVersion where m.id = :id")
+    void updateRendering(@Param("id") String id, @Param("thinkingHtml") String thinkingHtml, @Param("answerHtml") String answerHtml, @Param("renderVersion") Integer renderVersion);
 }
@@ -0,0 +1,196 @@
+package com.github.kettoleon.llm.sandbox.chat.repo;
+
+import com.github.kettoleon.llm.sandbox.common.util.IdleEvictor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps the last chat.history.recent-messages messages of the conversations in use, so that active chats are not read
+ * from the database on every turn. Conversations are loaded on first read and kept up to date on write. They are
+ * dropped after chat.history.idle-timeout without use, and the least recently used ones go first once more than
+ * chat.history.max-conversations are resident.
+ */
+@Component
+@Slf4j
+public class RecentMessageCache {
+
+    private final int capacity;
+    private final ConcurrentMap<String, Recent> conversations = new ConcurrentHashMap<>();
+    private final IdleEvictor<String, Recent> evictor;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    public RecentMessageCache(Environment env) {
+        this.capacity = env.getProperty("chat.history.recent-messages", Integer.class, 100);
+        int maxConversations = env.getProperty("chat.history.max-conversations", Integer.class, 1000);
+        Duration idleTimeout = env.getProperty("chat.history.idle-timeout", Duration.class, Duration.ofMinutes(30));
+        this.evictor = new IdleEvictor<>(conversations, maxConversations, idleTimeout, Recent::getLastAccess,
+                recent -> true, recent -> residentBytes.addAndGet(-recent.getBytes()));
+    }
+
+    /**
+     * @param loader loads the last n messages of the conversation, oldest first, used when they are not resident
+     * @return the last lastN messages of the conversation, oldest first
+     */
+    public List<Message> get(String conversationId, int lastN, IntFunction<List<Message>> loader) {
+        Recent recent = conversations.computeIfAbsent(conversationId, id -> new Recent());
+        List<Message> resident = recent.last(lastN);
+        if (resident != null) {
+            hits.incrementAndGet();
+            return resident;
+        }
+        misses.incrementAndGet();
+        // Loaded holding only this conversation, outside the map: reads of the same conversation wait for the load
+        // instead of running their own, and so do appends, which would get lost otherwise
+        synchronized (recent) {
+            resident = recent.last(lastN);
+            if (resident == null) {
+                int window = Math.max(lastN, capacity);
+                List<Message> messages = loader.apply(window);
+                residentBytes.addAndGet(recent.load(messages, messages.size() < window));
+                resident = new ArrayList<>(messages.subList(Math.max(0, messages.size() - lastN), messages.size()));
+            }
+        }
+        if (evictor.evictIfDue()) {
+            log.info("Recent message cache: {}", this);
+        }
+        return resident;
+    }
+
+    /**
+     * Adds a new message to the conversation, if it is resident. Otherwise it will be part of the next load.
+     */
+    public void append(String conversationId, Message message) {
+        Recent recent = conversations.get(conversationId);
+        if (recent != null) {
+            residentBytes.addAndGet(recent.append(message));
+        }
+    }
+
+    public void remove(String conversationId) {
+        Recent recent = conversations.remove(conversationId);
+        if (recent != null) {
+            residentBytes.addAndGet(-recent.getBytes());
+        }
+    }
+
+    private static long sizeOf(Message message) {
+        // Rough heap size: the strings plus the entity and its date
+        return 2L * (length(message.getText()) + length(message.getCreatedBy())) + 64;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictor.getEvictions();
+    }
+
+    public long getResidentBytes() {
+        return residentBytes.get();
+    }
+
+    public int getResidentConversations() {
+        return conversations.size();
+    }
+
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d conversations, ~%d bytes resident, %d hits, %d misses (%.1f%% hit ratio), %d evictions",
+                conversations.size(), residentBytes.get(), hits.get(), misses.get(), getHitRatio() * 100, evictor.getEvictions());
+    }
+
+    private class Recent {
+
+        private final Deque<Message> ring = new ArrayDeque<>();
+        // Nothing is served until the first load
+        private boolean loaded;
+        // Whether the ring holds the whole conversation, so any number of last messages can be served from it
+        private boolean complete;
+        // Only written holding the monitor, read without it so an eviction never waits for a load
+        private volatile long bytes;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        synchronized List<Message> last(int n) {
+            lastAccess = System.currentTimeMillis();
+            if (!loaded || (ring.size() < n && !complete)) {
+                return null;
+            }
+            List<Message> all = new ArrayList<>(ring);
+            return all.subList(Math.max(0, all.size() - n), all.size());
+        }
+
+        /**
+         * @return the change in resident bytes
+         */
+        synchronized long load(List<Message> messages, boolean complete) {
+            long before = bytes;
+            ring.clear();
+            bytes = 0;
+            messages.subList(Math.max(0, messages.size() - capacity), messages.size()).forEach(this::add);
+            this.complete = complete && messages.size() <= capacity;
+            this.loaded = true;
+            return bytes - before;
+        }
+
+        /**
+         * @return the change in resident bytes
+         */
+        synchronized long append(Message message) {
+            if (!loaded) {
+                // The load that is about to run reads it
+                return 0;
+            }
+            for (Message m : ring) {
+                // Already there when it was loaded in the same instant it was written
+                if (m == message || (m.getId() != null && m.getId().equals(message.getId()))) {
+                    return 0;
+                }
+            }
+            long before = bytes;
+            add(message);
+            while (ring.size() > capacity) {
+                bytes -= sizeOf(ring.removeFirst());
+                complete = false;
+            }
+            return bytes - before;
+        }
+
+        private void add(Message message) {
+            ring.addLast(message);
+            bytes += sizeOf(message);
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        long getLastAccess() {
+            return lastAccess;
+        }
+    }
+}
@@ -26,6 +26,8 @@ public class AiEnvironment {
 
     private VectorStore defaultVectorStore;
 
+    private JdbcTemplate defaultVectorStoreJdbcTemplate;
+
     private EmbeddingModel defaultEmbeddingModel;
 
     private OllamaApi defaultOllamaApi;
@@ -78,15 +80,16 @@ public class AiEnvironment {
 
     private VectorStore createDefaultVectorStore() {
         //TODO environment properties
-        return vectorStore(getDefaultEmbeddingModel(), dataSource(
-                "jdbc:postgresql://192.168.1.5:5432/postgres",
+        defaultVectorStoreJdbcTemplate = jdbcTemplate(dataSource(
+                "jdbc:postgresql://192.168.1.5:5432/postgres?reWriteBatchedInserts=true",
                 "postgres",
                 "postgres"
         ));
+        return vectorStore(getDefaultEmbeddingModel(), defaultVectorStoreJdbcTemplate);
     }
 
-    private VectorStore vectorStore(EmbeddingModel embeddingModel, DataSource dataSource) {
-        return PgVectorStore.builder(jdbcTemplate(dataSource), embeddingModel)
+    private VectorStore vectorStore(EmbeddingModel embeddingModel, JdbcTemplate jdbcTemplate) {
+        return PgVectorStore.builder(jdbcTemplate, embeddingModel)
                 .dimensions(768)                    // Optional: defaults to model dimensions or 1536
 //                .distanceType(COSINE_DISTANCE)       // Optional: defaults to COSINE_DISTANCE
 //                .indexType(HNSW)                     // Optional: defaults to HNSW
@@ -114,6 +117,10 @@ public class AiEnvironment {
         return defaultVectorStore;
     }
 
+    public JdbcTemplate getDefaultVectorStoreJdbcTemplate() {
+        return defaultVectorStoreJdbcTemplate;
+    }
+
     public EmbeddingModel getDefaultEmbeddingModel() {
         return defaultEmbeddingModel;
     }
@@ -0,0 +1,159 @@
+package com.github.kettoleon.llm.sandbox.common.prompt;
+
+import com.github.kettoleon.llm.sandbox.common.prompt.repo.CachedPromptResponse;
+import com.github.kettoleon.llm.sandbox.common.prompt.repo.CachedPromptResponseRepository;
+import com.github.kettoleon.llm.sandbox.common.util.EvictionSchedule;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.model.ModelOptionsUtils;
+import org.springframework.core.env.Environment;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.kettoleon.llm.sandbox.common.util.HashUtils.sha256Hex;
+
+/**
+ * Content addressed cache of model answers, keyed by a hash of the model options, system and user text.
+ * Answers live in an in-memory LRU in front of a database table. Entries expire after prompt-cache.ttl,
+ * and the table is trimmed to prompt-cache.max-entries by age.
+ */
+@Component
+@Slf4j
+public class PromptResponseCache {
+
+    private final CachedPromptResponseRepository repository;
+
+    private final boolean enabled;
+    private final Duration ttl;
+    private final int maxEntries;
+    private final Map<String, CachedPromptResponse> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final EvictionSchedule evictionSchedule = new EvictionSchedule();
+
+    public PromptResponseCache(Environment env, CachedPromptResponseRepository repository) {
+        this.repository = repository;
+        this.enabled = env.getProperty("prompt-cache.enabled", Boolean.class, true);
+        this.ttl = env.getProperty("prompt-cache.ttl", Duration.class, Duration.ofDays(30));
+        this.maxEntries = env.getProperty("prompt-cache.max-entries", Integer.class, 100_000);
+        int memoryEntries = env.getProperty("prompt-cache.memory-entries", Integer.class, 1_000);
+        this.memory = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPromptResponse> eldest) {
+                return size() > memoryEntries;
+            }
+        });
+    }
+
+    public String key(ChatOptions options, String system, String user) {
+        return sha256Hex(String.join("\u0000",
+                options == null ? "" : ModelOptionsUtils.toJsonString(options),
+                system == null ? "" : system,
+                user));
+    }
+
+    public Optional<String> get(String key) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        CachedPromptResponse cached = memory.get(key);
+        if (cached != null && !isExpired(cached)) {
+            memoryHits.incrementAndGet();
+            return Optional.of(cached.getResponse());
+        }
+        cached = repository.findById(key).filter(c -> !isExpired(c)).orElse(null);
+        if (cached != null) {
+            diskHits.incrementAndGet();
+            memory.put(key, cached);
+            return Optional.of(cached.getResponse());
+        }
+        misses.incrementAndGet();
+        return Optional.empty();
+    }
+
+    public void put(String key, String response) {
+        if (!enabled) {
+            return;
+        }
+        CachedPromptResponse cached = CachedPromptResponse.builder()
+                .hash(key)
+                .response(response)
+                .created(ZonedDateTime.now())
+                .build();
+        memory.put(key, cached);
+        repository.save(cached);
+        evictIfDue();
+    }
+
+    /**
+     * Forgets an answer, for example one that turned out not to be parseable, so that the next call asks the model again.
+     */
+    public void remove(String key) {
+        if (!enabled) {
+            return;
+        }
+        memory.remove(key);
+        repository.deleteById(key);
+    }
+
+    private boolean isExpired(CachedPromptResponse cached) {
+        return cached.getCreated().plus(ttl).isBefore(ZonedDateTime.now());
+    }
+
+    private void evictIfDue() {
+        if (!evictionSchedule.startPassIfDue(false)) {
+            return;
+        }
+        ZonedDateTime now = ZonedDateTime.now();
+        long evicted = repository.deleteAllCreatedBefore(now.minus(ttl));
+        long excess = repository.count() - maxEntries;
+        if (excess > 0) {
+            List<String> oldest = repository.findOldestHashes(PageRequest.of(0, (int) excess));
+            repository.deleteAllByIdInBatch(oldest);
+            evicted += oldest.size();
+        }
+        evictions.addAndGet(evicted);
+        log.info("Prompt response cache: {}", this);
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public double getHitRatio() {
+        long hits = memoryHits.get() + diskHits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d memory hits, %d disk hits, %d misses (%.1f%% hit ratio), %d evictions",
+                memoryHits.get(), diskHits.get(), misses.get(), getHitRatio() * 100, evictions.get());
+    }
+}
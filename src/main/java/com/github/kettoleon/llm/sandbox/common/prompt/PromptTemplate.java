@@ -1,11 +1,13 @@
 package com.github.kettoleon.llm.sandbox.common.prompt;
 
+import com.github.kettoleon.llm.sandbox.common.util.ThinkTagSplitter;
 import lombok.Getter;
 import lombok.Setter;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.messages.AssistantMessage;
 import org.springframework.ai.chat.model.ChatResponse;
 import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.ChatOptions;
 import org.springframework.ai.converter.BeanOutputConverter;
 
 import java.io.PrintWriter;
@@ -24,6 +26,9 @@ public class PromptTemplate {
 
     private PrintWriter out;
 
+    private PromptResponseCache responseCache;
+    private ChatOptions responseCacheOptions;
+
     public PromptTemplate(ChatClient chatClient){
         this.chatClient = chatClient;
         this.out = new PrintWriter(System.out);
@@ -33,12 +38,46 @@ public class PromptTemplate {
         this.out = out;
     }
 
+    /**
+     * Answers identical prompts from the cache. The options identify the model behind the chat client, so they must
+     * change whenever the model or its settings do. Only for clients without memory advisors, as the history is not
+     * part of the key.
+     */
+    public void setResponseCache(PromptResponseCache responseCache, ChatOptions options) {
+        this.responseCache = responseCache;
+        this.responseCacheOptions = options;
+    }
+
     public String prompt(String system, String user) {
-        StringBuffer sb = new StringBuffer();
         if (verbose) {
             out.println(">>> " + user);
             out.flush();
         }
+        if (responseCache == null) {
+            return generate(system, user);
+        }
+        String key = responseCache.key(responseCacheOptions, system, user);
+        Optional<String> cached = responseCache.get(key);
+        if (cached.isPresent()) {
+            if (verbose) {
+                out.println(cached.get());
+                out.flush();
+            }
+            return cached.get();
+        }
+        String result = generate(system, user);
+        responseCache.put(key, result);
+        return result;
+    }
+
+    private void forget(String system, String user) {
+        if (responseCache != null) {
+            responseCache.remove(responseCache.key(responseCacheOptions, system, user));
+        }
+    }
+
+    private String generate(String system, String user) {
+        StringBuffer sb = new StringBuffer();
         ChatClient.ChatClientRequestSpec chatcc = chatClient.
                 prompt()
                 .advisors()
@@ -76,12 +115,25 @@ public class PromptTemplate {
     public <T> Optional<T> promptToBean(String system, String user, Class<T> outc, Function<String,T> lastResortParser) {
         BeanOutputConverter<T> boc = new BeanOutputConverter<>(outc);
         String completeSystem = system + "\n\n" + boc.getFormat();
+        Optional<T> bean = promptToBean(completeSystem, user, boc, lastResortParser);
+        if (bean.isEmpty()) {
+            // A cached unusable answer would otherwise keep callers that retry in a loop
+            forget(completeSystem, user);
+        }
+        return bean;
+    }
+
+    private static String answerPart(String result) {
+        return Optional.ofNullable(ThinkTagSplitter.split(result).getAnswerPart()).orElse("");
+    }
+
+    private <T> Optional<T> promptToBean(String completeSystem, String user, BeanOutputConverter<T> boc, Function<String,T> lastResortParser) {
         if (verbose) {
             out.println("$$> " + completeSystem);
             out.flush();
         }
         String result = prompt(completeSystem, user);
-        String answer = substringAfterLast(result, "</think>");
+        String answer = answerPart(result);
         if (answer.contains("```json")) {
             answer = substringBeforeLast(substringAfter(answer, "```json"), "```").trim();
         }
@@ -94,8 +146,9 @@ public class PromptTemplate {
                     out.println("Failed to parse LLM answer, asking again for correct format...");
                     out.flush();
                 }
-                result = prompt(buildRetrySystem(boc.getFormat()), answer);
-                answer = substringAfterLast(result, "</think>");
+                String retryUser = answer;
+                result = prompt(buildRetrySystem(boc.getFormat()), retryUser);
+                answer = answerPart(result);
                 if (answer.contains("```json")) {
                     answer = substringBeforeLast(substringAfter(answer, "```json"), "```").trim();
                 }
@@ -104,6 +157,7 @@ public class PromptTemplate {
                 } catch (RuntimeException e2) {
                     e2.printStackTrace();
                 }
+                forget(buildRetrySystem(boc.getFormat()), retryUser);
                 return Optional.empty();
             }
         } else if (lastResortParser != null) {
@@ -0,0 +1,26 @@
+package com.github.kettoleon.llm.sandbox.common.prompt.repo;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.time.ZonedDateTime;
+
+@Entity
+@Getter
+@Setter
+@Builder
+@AllArgsConstructor
+@NoArgsConstructor
+@Table(indexes = @Index(columnList = "created"))
+public class CachedPromptResponse {
+
+    // sha256 of model options, system and user text
+    @Id
+    private String hash;
+
+    @Column(columnDefinition = "LONGTEXT")
+    private String response;
+
+    private ZonedDateTime created;
+
+}
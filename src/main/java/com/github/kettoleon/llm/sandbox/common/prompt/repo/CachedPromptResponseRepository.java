@@ -0,0 +1,25 @@
+package com.github.kettoleon.llm.sandbox.common.prompt.repo;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.support.JpaRepositoryImplementation;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+
+@Repository
+public interface CachedPromptResponseRepository extends JpaRepositoryImplementation<CachedPromptResponse, String> {
+
+    @Transactional
+    @Modifying
+    @Query("delete from CachedPromptResponse c where c.created < :created")
+    int deleteAllCreatedBefore(@Param("created") ZonedDateTime created);
+
+    @Query("select c.hash from CachedPromptResponse c order by c.created asc")
+    List<String> findOldestHashes(Pageable pageable);
+
+}
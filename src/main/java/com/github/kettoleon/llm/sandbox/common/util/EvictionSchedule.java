@@ -0,0 +1,37 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a cache runs an eviction pass, without a scheduler: callers ask on every write, and a pass is due once
+ * the interval went by since the last one, or straight away when the cache is over capacity. Only one of the callers
+ * asking at the same time gets to run it.
+ */
+public class EvictionSchedule {
+
+    public static final Duration DEFAULT_INTERVAL = Duration.ofMinutes(1);
+
+    private final long intervalMillis;
+    private final AtomicLong lastPass = new AtomicLong(System.currentTimeMillis());
+
+    public EvictionSchedule() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public EvictionSchedule(Duration interval) {
+        this.intervalMillis = interval.toMillis();
+    }
+
+    /**
+     * @return true if the caller has to run a pass now
+     */
+    public boolean startPassIfDue(boolean overCapacity) {
+        long now = System.currentTimeMillis();
+        long last = lastPass.get();
+        if (!overCapacity && now - last < intervalMillis) {
+            return false;
+        }
+        return lastPass.compareAndSet(last, now);
+    }
+}
@@ -0,0 +1,78 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Evicts the entries of an in-memory cache that were not used for idleTimeout, then the least recently used ones while
+ * there are more than maxEntries, following an {@link EvictionSchedule}. Entries are removed with computeIfPresent,
+ * so one that is used again while the pass runs stays.
+ */
+public class IdleEvictor<K, V> {
+
+    private final ConcurrentMap<K, V> entries;
+    private final int maxEntries;
+    private final Duration idleTimeout;
+    private final ToLongFunction<V> lastAccess;
+    private final Predicate<V> evictable;
+    private final Consumer<V> onEviction;
+    private final EvictionSchedule schedule = new EvictionSchedule();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param lastAccess when the entry was last used, in epoch millis
+     * @param evictable  whether the entry may go at all, e.g. it is not in use right now
+     * @param onEviction called for every evicted entry, within the removal
+     */
+    public IdleEvictor(ConcurrentMap<K, V> entries, int maxEntries, Duration idleTimeout, ToLongFunction<V> lastAccess,
+                       Predicate<V> evictable, Consumer<V> onEviction) {
+        this.entries = entries;
+        this.maxEntries = maxEntries;
+        this.idleTimeout = idleTimeout;
+        this.lastAccess = lastAccess;
+        this.evictable = evictable;
+        this.onEviction = onEviction;
+    }
+
+    /**
+     * @return true if a pass ran
+     */
+    public boolean evictIfDue() {
+        if (!schedule.startPassIfDue(entries.size() > maxEntries)) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long idleSince = now - idleTimeout.toMillis();
+        entries.keySet().forEach(key -> evictIf(key, idleSince));
+        if (entries.size() > maxEntries) {
+            entries.entrySet().stream()
+                    .sorted(Comparator.comparingLong(e -> lastAccess.applyAsLong(e.getValue())))
+                    .limit(entries.size() - maxEntries)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(key -> evictIf(key, now));
+        }
+        return true;
+    }
+
+    private void evictIf(K key, long idleSince) {
+        entries.computeIfPresent(key, (k, value) -> {
+            if (lastAccess.applyAsLong(value) >= idleSince || !evictable.test(value)) {
+                return value;
+            }
+            onEviction.accept(value);
+            evictions.incrementAndGet();
+            return null;
+        });
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
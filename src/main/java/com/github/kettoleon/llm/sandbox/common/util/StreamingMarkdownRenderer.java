@@ -0,0 +1,71 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
+
+/**
+ * Renders markdown that keeps growing, like a streamed model answer, without re-rendering what is already final.
+ * A block is closed once a blank line outside a code fence is followed by a line that does not start indented,
+ * as nothing after that point can change how the text before it renders. Only the open tail is rendered again
+ * on every update.
+ */
+public class StreamingMarkdownRenderer {
+
+    private int closedLength = 0;
+
+    /**
+     * @param text the whole text so far. Text before the closed length must not change between updates,
+     *             the open tail may (e.g. a partial tag that gets stripped later).
+     * @return the html of the blocks closed by this update, if any, and the html of the open tail
+     */
+    public Fragment update(CharSequence text) {
+        String closedHtml = null;
+        int boundary = findLastBoundary(text);
+        if (boundary > closedLength) {
+            closedHtml = markdownToHtml(text.subSequence(closedLength, boundary).toString());
+            closedLength = boundary;
+        }
+        String tail = text.subSequence(Math.min(closedLength, text.length()), text.length()).toString();
+        return new Fragment(closedHtml, tail.isBlank() ? "" : markdownToHtml(tail));
+    }
+
+    public int getClosedLength() {
+        return closedLength;
+    }
+
+    private int findLastBoundary(CharSequence text) {
+        int boundary = closedLength;
+        boolean inFence = false;
+        boolean afterBlankLine = false;
+        int lineStart = closedLength;
+        while (lineStart < text.length()) {
+            int lineEnd = indexOf(text, '\n', lineStart);
+            if (afterBlankLine && !inFence && !Character.isWhitespace(text.charAt(lineStart))) {
+                boundary = lineStart;
+            }
+            if (lineEnd < 0) {
+                // Incomplete last line, it is enough to know how it starts
+                break;
+            }
+            String line = text.subSequence(lineStart, lineEnd).toString();
+            String trimmed = line.trim();
+            if (trimmed.startsWith("```") || trimmed.startsWith("~~~")) {
+                inFence = !inFence;
+            }
+            afterBlankLine = trimmed.isEmpty();
+            lineStart = lineEnd + 1;
+        }
+        return boundary;
+    }
+
+    private static int indexOf(CharSequence text, char c, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public record Fragment(String closedHtml, String openHtml) {
+    }
+}
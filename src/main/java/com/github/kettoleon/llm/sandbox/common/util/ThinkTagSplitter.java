@@ -0,0 +1,129 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+/**
+ * Splits the output of a reasoning model in the thinking part, between &lt;think&gt; tags, and the answer after them.
+ * Fed token by token, every character is looked at once, and a tag split across tokens is held back until it is
+ * known whether it is a tag. A &lt;think&gt; tag is only recognised before the answer starts, other than stray
+ * '&lt;' characters right before it, and the first &lt;/think&gt; closes the thinking part.
+ */
+public class ThinkTagSplitter {
+
+    private static final String OPEN = "<think>";
+    private static final String CLOSE = "</think>";
+
+    private enum State {START, THINKING, ANSWER}
+
+    private final StringBuilder thinking = new StringBuilder();
+    private final StringBuilder answer = new StringBuilder();
+    private State state = State.START;
+    // How many characters of the tag being looked for are matched, and held back, so far
+    private int matched;
+    private boolean thinkingBlank = true;
+    private boolean answerBlank = true;
+    private boolean hadThinkTag;
+
+    public static ThinkTagSplitter split(String text) {
+        ThinkTagSplitter splitter = new ThinkTagSplitter();
+        splitter.append(text);
+        return splitter;
+    }
+
+    public void append(CharSequence token) {
+        for (int i = 0; i < token.length(); i++) {
+            accept(token.charAt(i));
+        }
+    }
+
+    private void accept(char c) {
+        switch (state) {
+            case START -> {
+                if (c == OPEN.charAt(matched)) {
+                    matched++;
+                    if (matched == OPEN.length()) {
+                        matched = 0;
+                        hadThinkTag = true;
+                        state = State.THINKING;
+                    }
+                } else if (matched == 0 && Character.isWhitespace(c)) {
+                    // Leading whitespace is dropped, like the answer is trimmed after the thinking part
+                } else if (c == OPEN.charAt(0)) {
+                    // The opening tag starts with its only '<', so a mismatching one restarts the match at c, the
+                    // characters held back so far are kept in the answer
+                    appendAnswer(OPEN, matched);
+                    matched = 1;
+                } else {
+                    state = State.ANSWER;
+                    appendAnswer(OPEN, matched);
+                    matched = 0;
+                    appendAnswer(c);
+                }
+            }
+            case THINKING -> {
+                if (c == CLOSE.charAt(matched)) {
+                    matched++;
+                    if (matched == CLOSE.length()) {
+                        matched = 0;
+                        state = State.ANSWER;
+                    }
+                } else {
+                    // The closing tag starts with its only '<', so a mismatch can only restart the match at c
+                    for (int i = 0; i < matched; i++) {
+                        appendThinking(CLOSE.charAt(i));
+                    }
+                    matched = 0;
+                    if (c == CLOSE.charAt(0)) {
+                        matched = 1;
+                    } else {
+                        appendThinking(c);
+                    }
+                }
+            }
+            case ANSWER -> appendAnswer(c);
+        }
+    }
+
+    private void appendThinking(char c) {
+        thinking.append(c);
+        thinkingBlank &= Character.isWhitespace(c);
+    }
+
+    private void appendAnswer(String s, int length) {
+        for (int i = 0; i < length; i++) {
+            appendAnswer(s.charAt(i));
+        }
+    }
+
+    private void appendAnswer(char c) {
+        if (answerBlank && hadThinkTag && Character.isWhitespace(c)) {
+            return;
+        }
+        answer.append(c);
+        answerBlank &= Character.isWhitespace(c);
+    }
+
+    /**
+     * @return the thinking text so far, null when there is none. Only ever grows, the same instance is returned.
+     */
+    public CharSequence thinking() {
+        return thinkingBlank ? null : thinking;
+    }
+
+    /**
+     * @return the answer text so far, null when there is none. Only ever grows, the same instance is returned.
+     */
+    public CharSequence answer() {
+        return answerBlank ? null : answer;
+    }
+
+    public String getThinkingPart() {
+        return thinkingBlank ? null : thinking.toString();
+    }
+
+    public String getAnswerPart() {
+        return answerBlank ? null : answer.toString();
+    }
+
+    public boolean isThinking() {
+        return state == State.THINKING;
+    }
+}
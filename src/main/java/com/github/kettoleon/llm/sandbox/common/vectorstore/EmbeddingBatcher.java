@@ -0,0 +1,88 @@
+package com.github.kettoleon.llm.sandbox.common.vectorstore;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.tokenizer.JTokkitTokenCountEstimator;
+import org.springframework.ai.tokenizer.TokenCountEstimator;
+import org.springframework.ai.vectorstore.VectorStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Groups documents into batches bounded by document count and estimated tokens, so each batch is
+ * embedded with a single model call and written to the store with a single batched insert.
+ */
+@Slf4j
+public class EmbeddingBatcher implements AutoCloseable {
+
+    private static final TokenCountEstimator TOKEN_COUNT_ESTIMATOR = new JTokkitTokenCountEstimator();
+
+    private final VectorStore vectorStore;
+    private final int maxDocuments;
+    private final int maxTokens;
+
+    private final List<Document> batch = new ArrayList<>();
+    private int batchTokens = 0;
+
+    private long documents = 0;
+    private long batches = 0;
+    private final long start = System.nanoTime();
+
+    public EmbeddingBatcher(VectorStore vectorStore, int maxDocuments, int maxTokens) {
+        this.vectorStore = vectorStore;
+        this.maxDocuments = maxDocuments;
+        this.maxTokens = maxTokens;
+    }
+
+    public void add(Document document) {
+        int tokens = TOKEN_COUNT_ESTIMATOR.estimate(document.getText());
+        if (!batch.isEmpty() && batchTokens + tokens > maxTokens) {
+            flush();
+        }
+        batch.add(document);
+        batchTokens += tokens;
+        if (batch.size() >= maxDocuments || batchTokens >= maxTokens) {
+            flush();
+        }
+    }
+
+    public void addAll(List<Document> documents) {
+        documents.forEach(this::add);
+    }
+
+    public void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        vectorStore.add(new ArrayList<>(batch));
+        documents += batch.size();
+        batches++;
+        log.debug("Embedded batch of {} documents ({} tokens)", batch.size(), batchTokens);
+        batch.clear();
+        batchTokens = 0;
+    }
+
+    @Override
+    public void close() {
+        flush();
+    }
+
+    public long getDocuments() {
+        return documents;
+    }
+
+    public long getBatches() {
+        return batches;
+    }
+
+    public double getDocumentsPerSecond() {
+        double seconds = Math.max((System.nanoTime() - start) / 1_000_000_000d, 0.001d);
+        return documents / seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d documents in %d batches (%.2f documents/s)", documents, batches, getDocumentsPerSecond());
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+/**
+ * Carries frames to the websocket sessions of a channel (e.g. a chat) on every node running the application.
+ * Each node keeps its own index of the sessions of a channel, so a frame crosses to another node once, however many
+ * sessions there are on it. The implementation is chosen with websocket.broadcast.bus, local (default) or jdbc.
+ * <p>
+ * Control messages travel in order with the frames of the same node, but are for the nodes rather than the sessions,
+ * e.g. to stop a generation running on another node.
+ */
+public interface BroadcastBus {
+
+    /**
+     * @return the number of sessions on this node the frame was sent to
+     */
+    int publish(String channel, OutboundFrame frame);
+
+    /**
+     * Sends the control message to the subscribers of every node, this one included.
+     */
+    void publishControl(String channel, String control);
+
+    void subscribe(Subscriber subscriber);
+
+    /**
+     * @return true if other nodes may be listening, false if this node is the only one
+     */
+    boolean isShared();
+
+    interface Subscriber {
+
+        /**
+         * @return the number of sessions the frame was sent to
+         */
+        int deliver(String channel, OutboundFrame frame);
+
+        default void control(String channel, String control) {
+        }
+    }
+}
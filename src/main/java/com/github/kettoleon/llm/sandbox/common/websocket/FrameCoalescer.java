@@ -0,0 +1,115 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Groups the tokens of one streamed answer into frames, see {@link FrameEmitter}.
+ * Tokens are only rendered when a frame is due, and the final frame is always the keyframe.
+ * Rendering and broadcasting a frame happen together holding the lock given on creation, so that whoever numbers the
+ * frames can take the same lock to read the rendered state exactly as of the last frame broadcast.
+ */
+public class FrameCoalescer {
+
+    private final FrameEmitter emitter;
+    private final ScheduledExecutorService scheduler;
+    private final Duration interval;
+    private final int maxChars;
+    private final Function<String, String> render;
+    private final Supplier<String> keyframe;
+    private final Supplier<String> finalKeyframe;
+    private final ToIntFunction<OutboundFrame> broadcast;
+    private final Object lock;
+
+    private final StringBuilder pending = new StringBuilder();
+    private int pendingTokens;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean completed;
+
+    FrameCoalescer(FrameEmitter emitter, ScheduledExecutorService scheduler, Duration interval, int maxChars,
+                   Function<String, String> render, Supplier<String> keyframe, Supplier<String> finalKeyframe,
+                   ToIntFunction<OutboundFrame> broadcast, Object lock) {
+        this.emitter = emitter;
+        this.scheduler = scheduler;
+        this.interval = interval;
+        this.maxChars = maxChars;
+        this.render = render;
+        this.keyframe = keyframe;
+        this.finalKeyframe = finalKeyframe;
+        this.broadcast = broadcast;
+        this.lock = lock == null ? this : lock;
+    }
+
+    public void add(String token) {
+        synchronized (lock) {
+            if (completed || token.isEmpty()) {
+                return;
+            }
+            pending.append(token);
+            pendingTokens++;
+            if (pending.length() >= maxChars) {
+                flush();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(this::scheduledFlush, interval.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Renders whatever is pending and sends the final keyframe. Tokens added afterwards are ignored.
+     */
+    public void complete() {
+        synchronized (lock) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            cancelScheduledFlush();
+            int tokens = pendingTokens;
+            if (tokens > 0) {
+                render.apply(pending.toString());
+                pending.setLength(0);
+                pendingTokens = 0;
+            }
+            String frame = finalKeyframe.get();
+            emitter.sent(frame, Math.max(tokens, 1), broadcast.applyAsInt(OutboundFrame.of(frame)));
+        }
+        emitter.completed();
+    }
+
+    private void scheduledFlush() {
+        synchronized (lock) {
+            scheduledFlush = null;
+            if (!completed) {
+                flush();
+            }
+        }
+    }
+
+    private void flush() {
+        cancelScheduledFlush();
+        if (pendingTokens == 0) {
+            return;
+        }
+        String frame = render.apply(pending.toString());
+        int tokens = pendingTokens;
+        pending.setLength(0);
+        pendingTokens = 0;
+        if (!frame.isEmpty()) {
+            // Sessions that fall behind may skip it, catching up with the keyframe
+            emitter.sent(frame, tokens, broadcast.applyAsInt(new OutboundFrame(frame, keyframe)));
+        }
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+}
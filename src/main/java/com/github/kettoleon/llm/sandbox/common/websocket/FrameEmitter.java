@@ -0,0 +1,115 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Creates the {@link FrameCoalescer} of each streamed answer, and keeps the frame metrics of all of them.
+ * Tokens are grouped in frames every stream.frame-interval-ms, or sooner once stream.frame-max-chars are pending.
+ */
+@Component
+@Slf4j
+public class FrameEmitter {
+
+    private final Duration interval;
+    private final int maxChars;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "frame-emitter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesCoalesced = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public FrameEmitter(Environment env) {
+        this.interval = Duration.ofMillis(env.getProperty("stream.frame-interval-ms", Long.class, 50L));
+        this.maxChars = env.getProperty("stream.frame-max-chars", Integer.class, 4096);
+    }
+
+    /**
+     * @param render    turns the tokens received since the previous frame into the next (delta) frame, empty for none
+     * @param keyframe  the whole current state, sent as the final frame so every viewer ends up with the full answer
+     * @param broadcast sends a frame to the viewers, returning how many there were
+     */
+    public FrameCoalescer coalesce(Function<String, String> render, Supplier<String> keyframe, ToIntFunction<OutboundFrame> broadcast) {
+        return coalesce(render, keyframe, broadcast, null);
+    }
+
+    /**
+     * @param lock held while a frame is rendered and broadcast, see {@link FrameCoalescer}
+     */
+    public FrameCoalescer coalesce(Function<String, String> render, Supplier<String> keyframe, ToIntFunction<OutboundFrame> broadcast,
+                                   Object lock) {
+        return coalesce(render, keyframe, keyframe, broadcast, lock);
+    }
+
+    /**
+     * @param keyframe      the whole current state, for viewers that fall behind
+     * @param finalKeyframe the whole final state, sent as the final frame once the stream completes
+     */
+    public FrameCoalescer coalesce(Function<String, String> render, Supplier<String> keyframe, Supplier<String> finalKeyframe,
+                                   ToIntFunction<OutboundFrame> broadcast, Object lock) {
+        return new FrameCoalescer(this, scheduler, interval, maxChars, render, keyframe, finalKeyframe, broadcast, lock);
+    }
+
+    void sent(String frame, int frameTokens, int sessions) {
+        long frameBytes = frame.length();
+        tokens.addAndGet(frameTokens);
+        framesSent.addAndGet(sessions);
+        bytesSent.addAndGet(frameBytes * sessions);
+        if (frameTokens > 1) {
+            // Without coalescing, each of these tokens would have been a frame of about the same size
+            framesCoalesced.addAndGet((long) (frameTokens - 1) * sessions);
+            bytesSaved.addAndGet(frameBytes * (frameTokens - 1) * sessions);
+        }
+    }
+
+    void completed() {
+        log.debug("Streamed answer finished, totals: {}", this);
+    }
+
+    public long getTokens() {
+        return tokens.get();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesCoalesced() {
+        return framesCoalesced.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tokens, %d frames sent, %d frames coalesced, %d bytes sent, ~%d bytes saved",
+                tokens.get(), framesSent.get(), framesCoalesced.get(), bytesSent.get(), bytesSaved.get());
+    }
+}
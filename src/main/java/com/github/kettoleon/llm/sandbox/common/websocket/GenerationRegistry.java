@@ -0,0 +1,112 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the subscriptions of the answers being generated, per channel (e.g. a chat), so they can be cancelled.
+ * Cancelling disposes the subscription, which closes the streaming request to the model server and makes it stop
+ * generating. Answers nobody is watching are cancelled once chat.generation.abandon-grace has passed, so a reload
+ * or a short network hiccup does not lose them.
+ * <p>
+ * Only the node generating an answer can cancel it, so its handler relays stops to every node over the
+ * {@link BroadcastBus}. Whether an answer is abandoned is only known per node, so chats do not cancel abandoned
+ * answers when the bus is shared with other nodes, the answer then runs to completion unless stopped.
+ */
+@Component
+@Slf4j
+public class GenerationRegistry {
+
+    private final Map<String, Map<String, Disposable>> generations = new ConcurrentHashMap<>();
+    private final Duration abandonGrace;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "generation-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final AtomicLong cancelled = new AtomicLong();
+
+    public GenerationRegistry(Environment env) {
+        this.abandonGrace = env.getProperty("chat.generation.abandon-grace", Duration.class, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Subscribes to the generation, keeping the subscription until it completes, fails or is cancelled.
+     *
+     * @param onFinally gets SignalType.CANCEL when the generation was cancelled
+     */
+    public <T> void subscribe(String channel, Flux<T> generation, Consumer<T> onNext, Consumer<SignalType> onFinally) {
+        String id = UUID.randomUUID().toString();
+        // Registered before subscribing, so that it is there for doFinally to remove, however fast the answer is
+        Disposable.Swap subscription = Disposables.swap();
+        generations.computeIfAbsent(channel, k -> new ConcurrentHashMap<>()).put(id, subscription);
+        subscription.update(generation
+                .doFinally(signal -> {
+                    generations.computeIfPresent(channel, (k, running) -> {
+                        running.remove(id);
+                        return running.isEmpty() ? null : running;
+                    });
+                    onFinally.accept(signal);
+                })
+                .subscribe(onNext, e -> log.warn("Generation for {} failed", channel, e)));
+    }
+
+    /**
+     * @return how many generations were cancelled
+     */
+    public int cancel(String channel) {
+        Map<String, Disposable> running = generations.remove(channel);
+        if (running == null) {
+            return 0;
+        }
+        running.values().forEach(Disposable::dispose);
+        cancelled.addAndGet(running.size());
+        log.info("Cancelled {} generations for {}", running.size(), channel);
+        return running.size();
+    }
+
+    /**
+     * Cancels the generations of the channel after the grace period, if by then it is still abandoned.
+     */
+    public void cancelIfAbandoned(String channel, BooleanSupplier abandoned) {
+        if (!isGenerating(channel)) {
+            return;
+        }
+        scheduler.schedule(() -> {
+            if (abandoned.getAsBoolean()) {
+                cancel(channel);
+            }
+        }, abandonGrace.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isGenerating(String channel) {
+        return generations.containsKey(channel);
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,179 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Broadcast bus for several nodes sharing a database. Frames and control messages go straight to the subscribers of
+ * this node, and are written to a table, in the background and in order, for the other nodes to poll every
+ * websocket.broadcast.jdbc.poll-interval. Frames from other nodes arrive without their keyframe, so they are never
+ * dropped for slow sessions.
+ * <p>
+ * The application database is an embedded H2 file only one node can open, so the bus has its own, that every node
+ * must be able to reach: websocket.broadcast.jdbc.url (e.g. a PostgreSQL or H2 server), with
+ * websocket.broadcast.jdbc.username and websocket.broadcast.jdbc.password. The table is created if missing.
+ * <p>
+ * Nodes write concurrently, so frames do not always commit in id order across nodes. Each poll looks back
+ * websocket.broadcast.jdbc.lookback and skips what it already delivered, using the ids of each node, which do
+ * increase in commit order. Frames are deleted after websocket.broadcast.jdbc.retention, which has to be longer than
+ * the lookback.
+ */
+@Component
+@ConditionalOnProperty(name = "websocket.broadcast.bus", havingValue = "jdbc")
+@Slf4j
+public class JdbcBroadcastBus implements BroadcastBus {
+
+    private static final Duration CLEANUP_INTERVAL = Duration.ofMinutes(1);
+    private static final String FRAME = "frame";
+    private static final String CONTROL = "control";
+
+    private static final String CREATE_TABLE = "create table if not exists sandbox_broadcast_frame (" +
+            "id bigint generated by default as identity primary key, " +
+            "channel varchar(255) not null, " +
+            "node_id varchar(64) not null, " +
+            "kind varchar(16) not null, " +
+            "payload text not null, " +
+            "created bigint not null)";
+    private static final String CREATE_INDEX = "create index if not exists sandbox_broadcast_frame_created " +
+            "on sandbox_broadcast_frame (created)";
+    private static final String INSERT = "insert into sandbox_broadcast_frame (channel, node_id, kind, payload, created) " +
+            "values (?, ?, ?, ?, ?)";
+    private static final String FROM_OTHER_NODES_SINCE = "select id, channel, node_id, kind, payload " +
+            "from sandbox_broadcast_frame where created > ? and node_id <> ? order by id";
+    private static final String DELETE_CREATED_BEFORE = "delete from sandbox_broadcast_frame where created < ?";
+
+    private final DataSource dataSource;
+    private final JdbcTemplate jdbcTemplate;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Duration lookback;
+    private final Duration retention;
+    // Only used by the poller thread
+    private final Map<String, NodeCursor> cursorsByNode = new HashMap<>();
+    private final long started = System.currentTimeMillis();
+    private long lastCleanup = System.currentTimeMillis();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "broadcast-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "broadcast-poller");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public JdbcBroadcastBus(Environment env) {
+        this.dataSource = DataSourceBuilder.create()
+                .url(env.getRequiredProperty("websocket.broadcast.jdbc.url"))
+                .username(env.getProperty("websocket.broadcast.jdbc.username"))
+                .password(env.getProperty("websocket.broadcast.jdbc.password"))
+                .build();
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+        this.lookback = env.getProperty("websocket.broadcast.jdbc.lookback", Duration.class, Duration.ofSeconds(2));
+        this.retention = env.getProperty("websocket.broadcast.jdbc.retention", Duration.class, Duration.ofMinutes(1));
+        Duration pollInterval = env.getProperty("websocket.broadcast.jdbc.poll-interval", Duration.class, Duration.ofMillis(100));
+        jdbcTemplate.execute(CREATE_TABLE);
+        jdbcTemplate.execute(CREATE_INDEX);
+        poller.scheduleWithFixedDelay(this::pollQuietly, pollInterval.toMillis(), pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+        log.info("Broadcasting websocket frames through the database as node {}", nodeId);
+    }
+
+    @Override
+    public int publish(String channel, OutboundFrame frame) {
+        share(channel, FRAME, frame.payload());
+        return deliver(channel, frame);
+    }
+
+    @Override
+    public void publishControl(String channel, String control) {
+        share(channel, CONTROL, control);
+        subscribers.forEach(s -> s.control(channel, control));
+    }
+
+    private void share(String channel, String kind, String payload) {
+        long created = System.currentTimeMillis();
+        writer.execute(() -> {
+            try {
+                jdbcTemplate.update(INSERT, channel, nodeId, kind, payload, created);
+            } catch (RuntimeException e) {
+                log.warn("Could not share {} of {} with other nodes", kind, channel, e);
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    private int deliver(String channel, OutboundFrame frame) {
+        return subscribers.stream().mapToInt(s -> s.deliver(channel, frame)).sum();
+    }
+
+    private void pollQuietly() {
+        try {
+            poll();
+        } catch (RuntimeException e) {
+            log.warn("Could not poll frames of other nodes", e);
+        }
+    }
+
+    private void poll() {
+        long now = System.currentTimeMillis();
+        long since = Math.max(now - lookback.toMillis(), started);
+        jdbcTemplate.query(FROM_OTHER_NODES_SINCE, rs -> {
+            long id = rs.getLong("id");
+            NodeCursor cursor = cursorsByNode.computeIfAbsent(rs.getString("node_id"), n -> new NodeCursor());
+            cursor.lastSeen = now;
+            if (id > cursor.lastDelivered) {
+                cursor.lastDelivered = id;
+                String channel = rs.getString("channel");
+                if (CONTROL.equals(rs.getString("kind"))) {
+                    String control = rs.getString("payload");
+                    subscribers.forEach(s -> s.control(channel, control));
+                } else {
+                    deliver(channel, OutboundFrame.of(rs.getString("payload")));
+                }
+            }
+        }, since, nodeId);
+        if (lastCleanup + CLEANUP_INTERVAL.toMillis() < now) {
+            lastCleanup = now;
+            long expired = now - retention.toMillis();
+            jdbcTemplate.update(DELETE_CREATED_BEFORE, expired);
+            // Nodes that stopped, or restarted with a new id, have nothing left within the lookback
+            cursorsByNode.values().removeIf(cursor -> cursor.lastSeen < expired);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        poller.shutdownNow();
+        writer.shutdown();
+        writer.awaitTermination(5, TimeUnit.SECONDS);
+        if (dataSource instanceof AutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    private static class NodeCursor {
+        private long lastDelivered = -1;
+        private long lastSeen;
+    }
+}
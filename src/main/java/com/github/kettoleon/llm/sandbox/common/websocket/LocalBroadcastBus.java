@@ -0,0 +1,37 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Broadcast bus for a single node, frames go straight to the subscribers.
+ */
+@Component
+@ConditionalOnProperty(name = "websocket.broadcast.bus", havingValue = "local", matchIfMissing = true)
+public class LocalBroadcastBus implements BroadcastBus {
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    @Override
+    public int publish(String channel, OutboundFrame frame) {
+        return subscribers.stream().mapToInt(s -> s.deliver(channel, frame)).sum();
+    }
+
+    @Override
+    public void publishControl(String channel, String control) {
+        subscribers.forEach(s -> s.control(channel, control));
+    }
+
+    @Override
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+}
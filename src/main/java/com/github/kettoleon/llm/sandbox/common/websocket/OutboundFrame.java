@@ -0,0 +1,18 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import java.util.function.Supplier;
+
+/**
+ * A message for a websocket session. Intermediate frames of a stream carry the keyframe of the stream, so a session
+ * that falls behind can drop them and catch up with the keyframe instead. Frames without one are never dropped.
+ */
+public record OutboundFrame(String payload, Supplier<String> keyframe) {
+
+    public static OutboundFrame of(String payload) {
+        return new OutboundFrame(payload, null);
+    }
+
+    public boolean isDroppable() {
+        return keyframe != null;
+    }
+}
@@ -0,0 +1,224 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends websocket messages without blocking the producer: every session has a bounded queue, drained by one sender
+ * task at a time, so messages to a session never go out concurrently and a slow browser only delays itself.
+ * When a queue is full, websocket.outbound.overflow-policy decides: DROP_INTERMEDIATE replaces the queued
+ * intermediate frames of each stream with the keyframe of that stream, DISCONNECT closes the session.
+ * <p>
+ * If the queue is still full after dropping, the frames left are joined into a single message, which htmx swaps
+ * element by element as if they had come one by one. Only once that message would exceed
+ * websocket.outbound.max-coalesced-chars is the session closed under DROP_INTERMEDIATE too.
+ */
+@Component
+@Slf4j
+public class OutboundSessions {
+
+    public enum OverflowPolicy {
+        DROP_INTERMEDIATE, DISCONNECT
+    }
+
+    private final int maxQueuedFrames;
+    private final int maxCoalescedChars;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicInteger senderThreads = new AtomicInteger();
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ws-sender-" + senderThreads.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, OutboundSession> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong sessionsDisconnected = new AtomicLong();
+
+    public OutboundSessions(Environment env) {
+        this.maxQueuedFrames = env.getProperty("websocket.outbound.max-queued-frames", Integer.class, 64);
+        this.maxCoalescedChars = env.getProperty("websocket.outbound.max-coalesced-chars", Integer.class, 1_000_000);
+        this.overflowPolicy = env.getProperty("websocket.outbound.overflow-policy", OverflowPolicy.class, OverflowPolicy.DROP_INTERMEDIATE);
+    }
+
+    public void send(WebSocketSession session, OutboundFrame frame) {
+        if (session.isOpen()) {
+            sessions.computeIfAbsent(session.getId(), id -> new OutboundSession(session)).send(frame);
+        }
+    }
+
+    public void remove(WebSocketSession session) {
+        OutboundSession outbound = sessions.remove(session.getId());
+        if (outbound != null) {
+            outbound.discard();
+        }
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getSessionsDisconnected() {
+        return sessionsDisconnected.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        senders.shutdownNow();
+    }
+
+    private class OutboundSession {
+
+        private final WebSocketSession session;
+        private final Deque<OutboundFrame> queue = new ArrayDeque<>();
+        private boolean draining;
+        private boolean discarded;
+
+        OutboundSession(WebSocketSession session) {
+            this.session = session;
+        }
+
+        void send(OutboundFrame frame) {
+            synchronized (this) {
+                if (discarded) {
+                    return;
+                }
+                if (queue.size() >= maxQueuedFrames && !makeRoom(frame)) {
+                    return;
+                }
+                queue.addLast(frame);
+                ensureDraining();
+            }
+        }
+
+        /**
+         * @return false if the frame must not be queued, because it was replaced or the session was closed
+         */
+        private boolean makeRoom(OutboundFrame frame) {
+            if (overflowPolicy == OverflowPolicy.DROP_INTERMEDIATE) {
+                Set<Supplier<String>> replaced = replaceIntermediateFrames();
+                if (queue.size() >= maxQueuedFrames && !coalesceQueue()) {
+                    return disconnect();
+                }
+                if (frame.isDroppable()) {
+                    framesDropped.incrementAndGet();
+                    if (replaced.add(frame.keyframe())) {
+                        queue.addLast(keyframeOf(frame));
+                    }
+                    ensureDraining();
+                    return false;
+                }
+                return true;
+            }
+            return disconnect();
+        }
+
+        /**
+         * Replaces the intermediate frames of each stream in the queue with its keyframe, where the first of them was.
+         * Keyframes are read with the lock of the stream of the frame being sent held by the caller, and streams that
+         * reach the same session share that lock, so each keyframe contains exactly the frames sent so far.
+         *
+         * @return the keyframe suppliers of the streams replaced
+         */
+        private Set<Supplier<String>> replaceIntermediateFrames() {
+            Set<Supplier<String>> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<OutboundFrame> kept = new ArrayDeque<>(queue.size());
+            for (OutboundFrame queued : queue) {
+                if (!queued.isDroppable()) {
+                    kept.addLast(queued);
+                } else {
+                    framesDropped.incrementAndGet();
+                    if (replaced.add(queued.keyframe())) {
+                        kept.addLast(keyframeOf(queued));
+                    }
+                }
+            }
+            queue.clear();
+            queue.addAll(kept);
+            return replaced;
+        }
+
+        /**
+         * Still droppable, so a later overflow replaces it with a newer keyframe in the same place.
+         */
+        private OutboundFrame keyframeOf(OutboundFrame frame) {
+            return new OutboundFrame(frame.keyframe().get(), frame.keyframe());
+        }
+
+        /**
+         * Joins the queued frames into one message keeping their order, as intermediate ones are already reduced to one
+         * keyframe per stream.
+         *
+         * @return false if that message would be longer than websocket.outbound.max-coalesced-chars
+         */
+        private boolean coalesceQueue() {
+            StringBuilder joined = new StringBuilder();
+            for (OutboundFrame queued : queue) {
+                joined.append(queued.payload());
+                if (joined.length() > maxCoalescedChars) {
+                    return false;
+                }
+            }
+            queue.clear();
+            queue.addLast(OutboundFrame.of(joined.toString()));
+            return true;
+        }
+
+        private boolean disconnect() {
+            log.warn("Closing websocket session {}, it is {} frames behind", session.getId(), queue.size());
+            sessionsDisconnected.incrementAndGet();
+            sessions.remove(session.getId());
+            discard();
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (IOException | RuntimeException e) {
+                log.debug("Error closing slow websocket session {}", session.getId(), e);
+            }
+            return false;
+        }
+
+        private void ensureDraining() {
+            if (!draining) {
+                draining = true;
+                senders.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                OutboundFrame frame;
+                synchronized (this) {
+                    frame = queue.pollFirst();
+                    if (frame == null || discarded) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    session.sendMessage(new TextMessage(frame.payload()));
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Error sending message to session: {}", session.getId(), e);
+                }
+            }
+        }
+
+        synchronized void discard() {
+            discarded = true;
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils;
+import com.github.kettoleon.llm.sandbox.common.util.StreamingMarkdownRenderer;
+import com.github.kettoleon.llm.sandbox.common.util.ThinkTagSplitter;
+
+import java.util.Optional;
+
+import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
+
+/**
+ * Turns the tokens of an assistant message being generated into websocket frames, for a page that has a
+ * msg-think-&lt;id&gt; and a msg-answer-&lt;id&gt; placeholder. Each section gets a closed part, where finished
+ * markdown blocks are appended once, and an open part that is replaced with the rendering of the last, still growing,
+ * block. The keyframe replaces both sections with everything rendered so far.
+ * <p>
+ * Blocks are closed by a heuristic, see {@link StreamingMarkdownRenderer}, that some markdown defeats (a loose list,
+ * a link reference defined at the end), so the final keyframe renders the whole text once instead.
+ */
+public class StreamingMessage {
+
+    private final String id;
+    private final ThinkTagSplitter parts = new ThinkTagSplitter();
+    private final StreamingMarkdownRenderer thinking = new StreamingMarkdownRenderer();
+    private final StreamingMarkdownRenderer answer = new StreamingMarkdownRenderer();
+    private final StringBuilder thinkingClosedHtml = new StringBuilder();
+    private final StringBuilder answerClosedHtml = new StringBuilder();
+    private String thinkingOpenHtml = "";
+    private String answerOpenHtml = "";
+    private int thinkingLength = -1;
+    private int answerLength = -1;
+    private boolean completed;
+
+    public StreamingMessage(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the frame with the changes, empty if the token did not change what is shown
+     */
+    public synchronized String append(String token) {
+        if (completed) {
+            return "";
+        }
+        parts.append(token);
+        StringBuilder frame = new StringBuilder();
+
+        CharSequence thinkPart = parts.thinking();
+        if (thinkPart != null && thinkPart.length() != thinkingLength) {
+            StreamingMarkdownRenderer.Fragment fragment = thinking.update(thinkPart);
+            frame.append(formatSection("msg-think-" + id, fragment, thinkingLength < 0));
+            Optional.ofNullable(fragment.closedHtml()).ifPresent(thinkingClosedHtml::append);
+            thinkingOpenHtml = fragment.openHtml();
+            thinkingLength = thinkPart.length();
+        }
+        CharSequence answerPart = parts.answer();
+        if (answerPart != null && answerPart.length() != answerLength) {
+            StreamingMarkdownRenderer.Fragment fragment = answer.update(answerPart);
+            frame.append(formatSection("msg-answer-" + id, fragment, answerLength < 0));
+            Optional.ofNullable(fragment.closedHtml()).ifPresent(answerClosedHtml::append);
+            answerOpenHtml = fragment.openHtml();
+            answerLength = answerPart.length();
+        }
+        return frame.toString();
+    }
+
+    public synchronized String keyframe() {
+        StringBuilder frame = new StringBuilder();
+        if (thinkingLength >= 0) {
+            frame.append(formatSection("msg-think-" + id, new StreamingMarkdownRenderer.Fragment(thinkingClosedHtml.toString(), thinkingOpenHtml), true));
+        }
+        // Also when there is no answer at all, so the spinner goes away
+        frame.append(formatSection("msg-answer-" + id, new StreamingMarkdownRenderer.Fragment(answerClosedHtml.toString(), answerOpenHtml), true));
+        return frame.toString();
+    }
+
+    /**
+     * Renders each section from its whole text, the same as a saved message is rendered, and ignores later tokens.
+     *
+     * @return the keyframe, which {@link #keyframe()} returns from now on
+     */
+    public synchronized String finalKeyframe() {
+        if (!completed) {
+            completed = true;
+            if (parts.thinking() != null) {
+                thinkingClosedHtml.setLength(0);
+                thinkingClosedHtml.append(markdownToHtml(parts.getThinkingPart()));
+                thinkingOpenHtml = "";
+                thinkingLength = parts.thinking().length();
+            }
+            answerClosedHtml.setLength(0);
+            Optional.ofNullable(parts.getAnswerPart()).map(MarkdownUtils::markdownToHtml).ifPresent(answerClosedHtml::append);
+            answerOpenHtml = "";
+        }
+        return keyframe();
+    }
+
+    private static String formatSection(String sectionId, StreamingMarkdownRenderer.Fragment fragment, boolean first) {
+        String closedHtml = Optional.ofNullable(fragment.closedHtml()).orElse("");
+        if (first) {
+            // Replaces the placeholder (spinner) of the section with the closed and open parts
+            return String.format("<span id=\"%1$s\"><div id=\"%1$s-closed\">%2$s</div><div id=\"%1$s-open\">%3$s</div></span>",
+                    sectionId, closedHtml, fragment.openHtml());
+        }
+        StringBuilder sb = new StringBuilder();
+        if (!closedHtml.isEmpty()) {
+            sb.append(String.format("<div id=\"%s-closed\" hx-swap-oob=\"beforeend\">%s</div>", sectionId, closedHtml));
+        }
+        sb.append(String.format("<div id=\"%s-open\">%s</div>", sectionId, fragment.openHtml()));
+        return sb.toString();
+    }
+}
@@ -1,9 +1,16 @@
 package com.github.kettoleon.llm.sandbox.pathfinder;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.kettoleon.llm.sandbox.chat.repo.*;
 import com.github.kettoleon.llm.sandbox.common.configuration.AiEnvironment;
+import com.github.kettoleon.llm.sandbox.common.websocket.FrameCoalescer;
+import com.github.kettoleon.llm.sandbox.common.websocket.FrameEmitter;
+import com.github.kettoleon.llm.sandbox.common.websocket.GenerationRegistry;
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundFrame;
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundSessions;
+import com.github.kettoleon.llm.sandbox.common.websocket.StreamingMessage;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -19,7 +26,6 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
 import reactor.core.publisher.Flux;
 
-import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -37,9 +43,20 @@ public class CortexWebSocketHandler implements WebSocketHandler {
     @Autowired
     private AiEnvironment aiEnvironment;
 
+    @Autowired
+    private FrameEmitter frameEmitter;
+
+    @Autowired
+    private OutboundSessions outboundSessions;
+
+    @Autowired
+    private GenerationRegistry generations;
+
     private Map<String, Chat> liveChats = new HashMap<>();
     private Map<String, ChatResponse> responses = new HashMap<>();
     private final List<WebSocketSession> sessions = new CopyOnWriteArrayList<>();
+    // Every session sees every answer, so their frames are rendered and sent one answer at a time, see OutboundSessions
+    private final Object framesLock = new Object();
 
 
     private static final String defaultSystem = """
@@ -85,34 +102,40 @@ public class CortexWebSocketHandler implements WebSocketHandler {
         return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div><i>" + msg.getCreated().format(DateTimeFormatter.ofPattern("HH:mm:ss ")) + "</i> <b>" + msg.getCreatedBy() + "</b>: " + markdownToHtml(msg.getText()) + "</div></div>";
     }
 
-    public void addChatMessage(Flux<ChatResponse> response) {
+    /**
+     * @param requestedBy the session that asked for the answer, which is the one that can stop it
+     */
+    public void addChatMessage(WebSocketSession requestedBy, Flux<ChatResponse> response) {
 //        liveChats.put(chat.getId(), chat);
         Message currentMessage = Message.builder()
                 .id(UUID.randomUUID().toString())
                 .createdBy("assistant")
 //                .chat(chat)
                 .created(ZonedDateTime.now())
+                .text("")
                 .build();
         broadcastRawMessage(formatNewAssistantMessage(currentMessage));
-        response.doFinally(s -> finishMessage())
-                .subscribe(gp -> {
+        StreamingMessage streamingMessage = new StreamingMessage(currentMessage.getId());
+        FrameCoalescer frames = frameEmitter.coalesce(streamingMessage::append, streamingMessage::keyframe,
+                streamingMessage::finalKeyframe, this::broadcastFrame, framesLock);
+        generations.subscribe(generationChannel(requestedBy), response, gp -> {
                     responses.put("", gp);
-                    String text = Optional.ofNullable(gp.getResult())
+                    frames.add(Optional.ofNullable(gp.getResult())
                             .map(Generation::getOutput)
-                            .map(AssistantMessage::getText).orElse("");
-                    currentMessage.setText(Optional.ofNullable(currentMessage.getText()).orElse("") + text);
-                    broadcastRawMessage(formatInProgressMessage(currentMessage));
+                            .map(AssistantMessage::getText).orElse(""));
 
+                },
+                signal -> {
+                    frames.complete();
+                    finishMessage();
                 });
 
     }
 
     private String formatNewAssistantMessage(Message msg) {
-        return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div><span id=\"msg-" + msg.getId() + "\">...</span></div></div>";
-    }
-
-    private String formatInProgressMessage(Message gp) {
-        return String.format("<span id=\"msg-%s\">%s</span>", gp.getId(), markdownToHtml(gp.getText()));
+        return "<div id=\"messages\" hx-swap-oob=\"beforeend\"><div>" +
+                "<div class=\"text-secondary fs-6\"><span id=\"msg-think-" + msg.getId() + "\"></span></div>" +
+                "<span id=\"msg-answer-" + msg.getId() + "\">...</span></div></div>";
     }
 
 
@@ -122,7 +145,13 @@ public class CortexWebSocketHandler implements WebSocketHandler {
 
 
     private void broadcastRawMessage(String html) {
-        getOrCreateWebSockets().forEach(session -> sendRawMessage(session, html));
+        broadcastFrame(OutboundFrame.of(html));
+    }
+
+    private int broadcastFrame(OutboundFrame frame) {
+        List<WebSocketSession> allSessions = getOrCreateWebSockets();
+        allSessions.forEach(session -> outboundSessions.send(session, frame));
+        return allSessions.size();
     }
 
     private List<WebSocketSession> getOrCreateWebSockets() {
@@ -130,11 +159,7 @@ public class CortexWebSocketHandler implements WebSocketHandler {
     }
 
     private void sendRawMessage(WebSocketSession session, String progressHtml) {
-        try {
-            session.sendMessage(new TextMessage(progressHtml));
-        } catch (IOException e) {
-            log.warn("Error sending message to session: {}", session, e);
-        }
+        outboundSessions.send(session, OutboundFrame.of(progressHtml));
     }
 
     @Override
@@ -158,13 +183,25 @@ public class CortexWebSocketHandler implements WebSocketHandler {
 
     }
 
+    /**
+     * Every session asking gets its own answer, so stopping one does not stop those of other players.
+     */
+    private static String generationChannel(WebSocketSession session) {
+        return "cortex:" + session.getId();
+    }
+
     private String getChatId(WebSocketSession session) {
         return StringUtils.substringAfterLast(StringUtils.substringBeforeLast(session.getUri().toString(), "/"), "/");
     }
 
     @Override
     public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
-        String text = new ObjectMapper().readTree(message.getPayload().toString()).get("message").asText();
+        JsonNode payload = new ObjectMapper().readTree(message.getPayload().toString());
+        if (payload.has("stop")) {
+            generations.cancel(generationChannel(session));
+            return;
+        }
+        String text = payload.get("message").asText();
 
 //        String chatId = getChatId(session);
 //        Chat chat = chatRepository.findById(chatId).orElseThrow();
@@ -176,7 +213,7 @@ public class CortexWebSocketHandler implements WebSocketHandler {
                 .build();
         addChatMessage(msg);
 
-        addChatMessage(getChatClient().
+        addChatMessage(session, getChatClient().
                 prompt()
                 .advisors()
                 .user(text)
@@ -193,12 +230,19 @@ public class CortexWebSocketHandler implements WebSocketHandler {
 
     @Override
     public void handleTransportError(WebSocketSession session, Throwable exception) throws Exception {
-        getOrCreateWebSockets().remove(session);
+        removeSession(session);
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        removeSession(session);
+    }
+
+    private void removeSession(WebSocketSession session) {
         getOrCreateWebSockets().remove(session);
+        outboundSessions.remove(session);
+        // The answers it asked for are still shown to the other sessions, if there are any left
+        generations.cancelIfAbandoned(generationChannel(session), sessions::isEmpty);
     }
 
     @Override
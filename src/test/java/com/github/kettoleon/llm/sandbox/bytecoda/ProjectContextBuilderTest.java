@@ -0,0 +1,89 @@
+package com.github.kettoleon.llm.sandbox.bytecoda;
+
+import com.github.kettoleon.llm.sandbox.bytecoda.repo.*;
+import jakarta.persistence.EntityManager;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The statements needed to build the context of a query must not grow with the size of the project.
+ */
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Import(ProjectContextBuilder.class)
+class ProjectContextBuilderTest {
+
+    @Autowired
+    private EntityManager entityManager;
+
+    @Autowired
+    private ProjectRepository projectRepository;
+
+    @Autowired
+    private JavaFileRepository javaFileRepository;
+
+    @Autowired
+    private JavaClassRepository javaClassRepository;
+
+    @Autowired
+    private JavaMethodRepository javaMethodRepository;
+
+    @Autowired
+    private ProjectContextBuilder projectContextBuilder;
+
+    @Test
+    void statementCountStaysFlatAsTheProjectGrows() {
+        long small = statementsToBuildContext("small", 5);
+        long large = statementsToBuildContext("large", 200);
+
+        assertThat(small).isEqualTo(2);
+        assertThat(large).isEqualTo(small);
+    }
+
+    private long statementsToBuildContext(String projectId, int files) {
+        Project project = projectRepository.save(Project.builder().id(projectId).name(projectId).path(".").build());
+        List<Document> results = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            JavaFile jf = javaFileRepository.save(JavaFile.builder()
+                    .project(project)
+                    .path(projectId + "/Class" + i + ".java")
+                    .build());
+            JavaClass jc = javaClassRepository.save(JavaClass.builder()
+                    .file(jf)
+                    .qualifiedName(projectId + ".Class" + i)
+                    .functionality("Class " + i)
+                    .build());
+            for (int m = 0; m < 3; m++) {
+                JavaMethod jm = javaMethodRepository.save(JavaMethod.builder()
+                        .javaClass(jc)
+                        .signature("method" + m + "()")
+                        .functionality("Method " + m)
+                        .code("void method" + m + "() {}\n")
+                        .build());
+                // Every method matches the query, the worst case for the context
+                results.add(new Document(UUID.randomUUID().toString(), jm.getCode(),
+                        Map.of("projectId", projectId, "classId", jc.getId(), "methodId", jm.getId())));
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+
+        Statistics statistics = entityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        String context = projectContextBuilder.buildContext(results, projectId);
+
+        assertThat(context).contains(projectId + ".Class" + (files - 1), "method2()");
+        return statistics.getPrepareStatementCount();
+    }
+}
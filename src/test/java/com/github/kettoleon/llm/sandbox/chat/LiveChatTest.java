@@ -0,0 +1,62 @@
+package com.github.kettoleon.llm.sandbox.chat;
+
+import com.github.kettoleon.llm.sandbox.common.websocket.OutboundFrame;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * A browser connecting to a node that is not generating the answer still gets it back, see
+ * {@link LiveChat#setRemoteProgress}.
+ */
+class LiveChatTest {
+
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    void replayIncludesTheSnapshotAndTheFramesSinceOfARemoteAnswer() {
+        LiveChat liveChat = new LiveChat("chat", null, null, 16);
+        liveChat.broadcast(OutboundFrame.of("placeholder"), (s, f) -> {
+        });
+        liveChat.setRemoteProgress("snapshot");
+        liveChat.broadcast(OutboundFrame.of("token"), (s, f) -> {
+        });
+
+        liveChat.resume(mock(WebSocketSession.class), "", -1, () -> "history", (s, f) -> sent.add(f.payload()));
+
+        assertThat(sent).hasSize(1);
+        assertThat(sent.get(0)).startsWith("historysnapshottoken").doesNotContain("placeholder");
+    }
+
+    @Test
+    void replayOnlyIncludesTheSnapshotWhenFramesSinceAreNoLongerKept() {
+        LiveChat liveChat = new LiveChat("chat", null, null, 1);
+        liveChat.setRemoteProgress("snapshot");
+        liveChat.broadcast(OutboundFrame.of("lost"), (s, f) -> {
+        });
+        liveChat.broadcast(OutboundFrame.of("token"), (s, f) -> {
+        });
+
+        liveChat.resume(mock(WebSocketSession.class), "", -1, () -> "history", (s, f) -> sent.add(f.payload()));
+
+        assertThat(sent.get(0)).startsWith("historysnapshot<span id=\"chat-seq\"");
+    }
+
+    @Test
+    void completedRemoteAnswerIsLeftToTheHistory() {
+        LiveChat liveChat = new LiveChat("chat", null, null, 16);
+        liveChat.setRemoteProgress("snapshot");
+        liveChat.broadcast(OutboundFrame.of("token"), (s, f) -> {
+        });
+        liveChat.setRemoteProgress(null);
+
+        liveChat.resume(mock(WebSocketSession.class), "", -1, () -> "history", (s, f) -> sent.add(f.payload()));
+
+        assertThat(sent.get(0)).startsWith("history<span id=\"chat-seq\"");
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Streamed a character at a time, the closed blocks plus the last open part render the same as the whole text.
+ */
+class StreamingMarkdownRendererTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "A single paragraph, still growing",
+            "First paragraph.\n\nSecond paragraph,\nover two lines.\n\nThird.",
+            "# Title\n\nSome **bold** text.\n\n## Section\n\nMore text.\n",
+            "Before the code:\n\n```java\nint a = 1;\n\nint b = 2;\n\n\nint c = 3;\n```\n\nAfter the code.",
+            "~~~\nfence with a blank line\n\n  and an indented one\n~~~\n\nDone.",
+            "A tight list:\n\n- one\n- two\n- three\n\nAfter the list.",
+            "1. first\n2. second\n\n| a | b |\n|---|---|\n| 1 | 2 |\n\nEnd.",
+            "Code block:\n\n    indented code\n\n    more of it\n\nText."
+    })
+    void streamedRenderingMatchesTheFullOne(String text) {
+        StreamingMarkdownRenderer renderer = new StreamingMarkdownRenderer();
+        StringBuilder closedHtml = new StringBuilder();
+        String openHtml = "";
+        for (int i = 1; i <= text.length(); i++) {
+            StreamingMarkdownRenderer.Fragment fragment = renderer.update(text.substring(0, i));
+            if (fragment.closedHtml() != null) {
+                closedHtml.append(fragment.closedHtml());
+            }
+            openHtml = fragment.openHtml();
+        }
+
+        assertThat(closedHtml + openHtml).isEqualTo(markdownToHtml(text));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "Para\n\n```\nunclosed fence\n\nstill in it",
+            "Para\n\n- a loose item\n\n  continued"
+    })
+    void blocksThatMayStillChangeAreNotClosed(String text) {
+        StreamingMarkdownRenderer renderer = new StreamingMarkdownRenderer();
+        renderer.update(text);
+
+        assertThat(renderer.getClosedLength()).isEqualTo("Para\n\n".length());
+    }
+}
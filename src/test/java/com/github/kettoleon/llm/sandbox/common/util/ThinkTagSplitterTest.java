@@ -0,0 +1,88 @@
+package com.github.kettoleon.llm.sandbox.common.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ThinkTagSplitterTest {
+
+    @Test
+    void splitsThinkingFromAnswer() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("\n<think>\nreasoning\n</think>\n\nThe answer.");
+
+        assertThat(parts.getThinkingPart()).isEqualTo("\nreasoning\n");
+        assertThat(parts.getAnswerPart()).isEqualTo("The answer.");
+        assertThat(parts.isThinking()).isFalse();
+    }
+
+    @Test
+    void recognisesTagsSplitAcrossTokens() {
+        ThinkTagSplitter parts = new ThinkTagSplitter();
+
+        parts.append("<th");
+        assertThat(parts.thinking()).isNull();
+        assertThat(parts.answer()).isNull();
+        parts.append("ink>rea");
+        assertThat(parts.isThinking()).isTrue();
+        parts.append("son</th");
+        assertThat(parts.thinking()).hasToString("reason");
+        parts.append("ink");
+        assertThat(parts.answer()).isNull();
+        parts.append(">ans");
+        parts.append("wer");
+
+        assertThat(parts.getThinkingPart()).isEqualTo("reason");
+        assertThat(parts.getAnswerPart()).isEqualTo("answer");
+    }
+
+    @Test
+    void answerWithoutThinkTagIsKeptAsIs() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("Just an answer, with a < b and <thinker>.\n");
+
+        assertThat(parts.getThinkingPart()).isNull();
+        assertThat(parts.getAnswerPart()).isEqualTo("Just an answer, with a < b and <thinker>.\n");
+    }
+
+    @Test
+    void partialTagThatIsNotOneGoesToTheAnswer() {
+        ThinkTagSplitter parts = new ThinkTagSplitter();
+        parts.append("<thin");
+        parts.append("g> is not a tag");
+
+        assertThat(parts.getThinkingPart()).isNull();
+        assertThat(parts.getAnswerPart()).isEqualTo("<thing> is not a tag");
+    }
+
+    @Test
+    void mismatchingLessThanRestartsTheOpeningTag() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("<<think>reasoning</think>answer");
+
+        assertThat(parts.getThinkingPart()).isEqualTo("reasoning");
+        assertThat(parts.getAnswerPart()).isEqualTo("<answer");
+    }
+
+    @Test
+    void mismatchingLessThanRestartsTheClosingTag() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("<think>a <b> and <</think>answer");
+
+        assertThat(parts.getThinkingPart()).isEqualTo("a <b> and <");
+        assertThat(parts.getAnswerPart()).isEqualTo("answer");
+    }
+
+    @Test
+    void thinkTagAfterTheAnswerStartedIsText() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("Answer <think>not thinking</think>");
+
+        assertThat(parts.getThinkingPart()).isNull();
+        assertThat(parts.getAnswerPart()).isEqualTo("Answer <think>not thinking</think>");
+    }
+
+    @Test
+    void unfinishedThinkingHasNoAnswer() {
+        ThinkTagSplitter parts = ThinkTagSplitter.split("<think>still thinking</thi");
+
+        assertThat(parts.isThinking()).isTrue();
+        assertThat(parts.getThinkingPart()).isEqualTo("still thinking");
+        assertThat(parts.getAnswerPart()).isNull();
+    }
+}
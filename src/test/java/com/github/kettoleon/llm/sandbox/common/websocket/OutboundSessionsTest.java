@@ -0,0 +1,89 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * A session that falls behind skips intermediate frames, but ends up with the content of every stream.
+ */
+class OutboundSessionsTest {
+
+    private final CountDownLatch sending = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private OutboundSessions outboundSessions;
+    private WebSocketSession session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        outboundSessions = new OutboundSessions(new MockEnvironment()
+                .withProperty("websocket.outbound.max-queued-frames", "4")
+                .withProperty("websocket.outbound.overflow-policy", "DROP_INTERMEDIATE"));
+        session = mock(WebSocketSession.class);
+        when(session.getId()).thenReturn("slow");
+        when(session.isOpen()).thenReturn(true);
+        // The first message blocks the sender, so everything after it queues up
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).doNothing().when(session).sendMessage(any());
+        outboundSessions.send(session, OutboundFrame.of("placeholders"));
+        assertThat(sending.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @AfterEach
+    void tearDown() {
+        outboundSessions.shutdown();
+    }
+
+    @Test
+    void undroppableFrameKeepsTheKeyframeOfEveryStream() throws Exception {
+        queueTwoInterleavedStreams();
+
+        outboundSessions.send(session, OutboundFrame.of("user message"));
+
+        assertThat(sentPayloads(4)).containsExactly("placeholders", "a keyframe", "b keyframe", "user message");
+        assertThat(outboundSessions.getSessionsDisconnected()).isZero();
+    }
+
+    @Test
+    void droppableFrameKeepsTheKeyframeOfOtherStreams() throws Exception {
+        Supplier<String> a = queueTwoInterleavedStreams();
+
+        outboundSessions.send(session, new OutboundFrame("a3", a));
+
+        assertThat(sentPayloads(3)).containsExactly("placeholders", "a keyframe", "b keyframe");
+        assertThat(outboundSessions.getFramesDropped()).isEqualTo(5);
+    }
+
+    private Supplier<String> queueTwoInterleavedStreams() {
+        Supplier<String> a = () -> "a keyframe";
+        Supplier<String> b = () -> "b keyframe";
+        outboundSessions.send(session, new OutboundFrame("a1", a));
+        outboundSessions.send(session, new OutboundFrame("b1", b));
+        outboundSessions.send(session, new OutboundFrame("a2", a));
+        outboundSessions.send(session, new OutboundFrame("b2", b));
+        return a;
+    }
+
+    private List<String> sentPayloads(int count) throws Exception {
+        release.countDown();
+        ArgumentCaptor<TextMessage> sent = ArgumentCaptor.forClass(TextMessage.class);
+        verify(session, timeout(5000).times(count)).sendMessage(sent.capture());
+        return sent.getAllValues().stream().map(TextMessage::getPayload).toList();
+    }
+}
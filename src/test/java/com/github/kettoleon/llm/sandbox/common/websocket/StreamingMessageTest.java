@@ -0,0 +1,40 @@
+package com.github.kettoleon.llm.sandbox.common.websocket;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static com.github.kettoleon.llm.sandbox.common.util.MarkdownUtils.markdownToHtml;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Whatever the blocks streamed in between, the final keyframe shows what a saved message shows.
+ */
+class StreamingMessageTest {
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "A plain answer.\n\nWith two paragraphs.",
+            "A loose list:\n\n- a\n\n- b\n\n- c",
+            "See [the docs][1] and [the code][2].\n\nMore text.\n\n[1]: https://example.com/docs\n[2]: https://example.com/code",
+            "```\nfenced\n\ncode\n```\n\n> a quote\n\n> continued"
+    })
+    void finalKeyframeMatchesTheFullRendering(String answer) {
+        String text = "<think>\nLet me think about *this*.\n\n- step one\n\n- step two\n</think>\n\n" + answer;
+        StreamingMessage message = new StreamingMessage("m");
+        // Tokens of a few characters, cutting tags and markdown anywhere
+        for (int i = 0; i < text.length(); i += 3) {
+            message.append(text.substring(i, Math.min(text.length(), i + 3)));
+        }
+
+        String keyframe = message.finalKeyframe();
+
+        assertThat(keyframe).isEqualTo(section("msg-think-m", markdownToHtml("\nLet me think about *this*.\n\n- step one\n\n- step two\n"))
+                + section("msg-answer-m", markdownToHtml(answer)));
+        assertThat(message.keyframe()).isEqualTo(keyframe);
+        assertThat(message.append("ignored")).isEmpty();
+    }
+
+    private static String section(String id, String html) {
+        return String.format("<span id=\"%1$s\"><div id=\"%1$s-closed\">%2$s</div><div id=\"%1$s-open\"></div></span>", id, html);
+    }
+}